@@ -1,17 +1,24 @@
 package me.kareluo.intensify.preview;
 
+import android.graphics.BitmapRegionDecoder;
+import android.media.ExifInterface;
 import android.os.Bundle;
 import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
 import android.support.v7.app.AppCompatActivity;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 
 import java.io.IOException;
 
+import me.kareluo.intensify.image.IntensifyBitmapRegionDecoder;
 import me.kareluo.intensify.image.IntensifyImage;
+import me.kareluo.intensify.image.IntensifyImageDecoder;
+import me.kareluo.intensify.image.IntensifyImagePreloader;
 import me.kareluo.intensify.image.IntensifyImageView;
+import me.kareluo.intensify.image.IntensifyRegionDecoder;
 
 /**
  * Created by felix on 16/5/18.
@@ -28,6 +35,8 @@ public class MultiPreviewActivity extends AppCompatActivity {
 
     private String[] mPictures;
 
+    private IntensifyImagePreloader mPreloader;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -39,9 +48,59 @@ public class MultiPreviewActivity extends AppCompatActivity {
             Log.w(TAG, e);
         }
 
+        mPreloader = new IntensifyImagePreloader(getResources().getDisplayMetrics());
+
         mViewPager = (ViewPager) findViewById(R.id.vp_pager);
         mAdapter = new ImagePageAdapter();
         mViewPager.setAdapter(mAdapter);
+        mViewPager.addOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageSelected(int position) {
+                preloadNeighbours(position);
+            }
+        });
+        preloadNeighbours(0);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mPreloader.quit();
+    }
+
+    private void preloadNeighbours(int position) {
+        if (mPictures == null) return;
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        for (int i = position - 1; i <= position + 1; i += 2) {
+            if (i >= 0 && i < mPictures.length) {
+                mPreloader.preload(new AssetDecoder(PIC_DIR + "/" + mPictures[i]),
+                        metrics.widthPixels, metrics.heightPixels);
+            }
+        }
+    }
+
+    private class AssetDecoder implements IntensifyImageDecoder {
+        private String mPath;
+
+        AssetDecoder(String path) {
+            mPath = path;
+        }
+
+        @Override
+        public IntensifyRegionDecoder newRegionDecoder() throws IOException {
+            return new IntensifyBitmapRegionDecoder(
+                    BitmapRegionDecoder.newInstance(getAssets().open(mPath), false));
+        }
+
+        @Override
+        public Object getKey() {
+            return mPath;
+        }
+
+        @Override
+        public int getOrientation() {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
     }
 
     private class ImagePageAdapter extends PagerAdapter {
@@ -60,11 +119,8 @@ public class MultiPreviewActivity extends AppCompatActivity {
         public Object instantiateItem(ViewGroup container, int position) {
             IntensifyImageView imageView = new IntensifyImageView(container.getContext());
             imageView.setScaleType(IntensifyImage.ScaleType.FIT_AUTO);
-            try {
-                imageView.setImage(getAssets().open(PIC_DIR + "/" + mPictures[position]));
-            } catch (IOException e) {
-                Log.w(TAG, e);
-            }
+            imageView.setPreloader(mPreloader);
+            imageView.setImage(new AssetDecoder(PIC_DIR + "/" + mPictures[position]));
             container.addView(imageView);
             return imageView;
         }
@@ -0,0 +1,91 @@
+package me.kareluo.intensify.image;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Recorded lookups of an {@link IntensifyCache}, which can be replayed against
+ * an eviction policy to compare hit rates.
+ */
+public class AccessTrace<K> {
+
+    private final int mCapacity;
+
+    private final List<K> mKeys = new ArrayList<>();
+
+    private final Map<K, Integer> mSizes = new HashMap<>();
+
+    /**
+     * @param capacity the max number of lookups recorded, later ones are dropped.
+     */
+    public AccessTrace(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        mCapacity = capacity;
+    }
+
+    synchronized void record(K key) {
+        if (mKeys.size() < mCapacity) {
+            mKeys.add(key);
+        }
+    }
+
+    synchronized void recordSize(K key, int size) {
+        mSizes.put(key, size);
+    }
+
+    public synchronized int size() {
+        return mKeys.size();
+    }
+
+    /**
+     * Replay the recorded lookups on an empty cache, entries missed are added with
+     * the size they had when recorded.
+     *
+     * @param policy  a new policy instance, null for LRU.
+     * @param maxSize the max size of the replaying cache.
+     * @return the hit rate in [0, 1].
+     */
+    public float replay(IntensifyCache.EvictionPolicy<K> policy, int maxSize) {
+        List<K> keys;
+        final Map<K, Integer> sizes;
+        synchronized (this) {
+            keys = new ArrayList<>(mKeys);
+            sizes = new HashMap<>(mSizes);
+        }
+
+        IntensifyCache<K, Integer, Void> cache = new IntensifyCache<K, Integer, Void>(maxSize) {
+            @Override
+            protected int sizeOf(K key, Integer value) {
+                return value;
+            }
+        };
+        cache.setEvictionPolicy(policy);
+
+        for (K key : keys) {
+            if (cache.justGet(key) == null) {
+                Integer size = sizes.get(key);
+                cache.put(key, size != null ? size : 1);
+            }
+        }
+
+        int accesses = cache.hitCount() + cache.missCount();
+        return accesses != 0 ? 1f * cache.hitCount() / accesses : 0f;
+    }
+
+    /**
+     * Hit rates of LRU and {@link FrequencyPolicy} on this trace.
+     *
+     * @param maxSize the max size of the replaying cache.
+     * @return the comparison, such as "LRU=42%,Frequency=67%".
+     */
+    public String compare(int maxSize) {
+        return String.format(Locale.ROOT, "LRU=%d%%,Frequency=%d%%",
+                Math.round(100 * replay(null, maxSize)),
+                Math.round(100 * replay(new FrequencyPolicy<K>(), maxSize)));
+    }
+}
@@ -0,0 +1,137 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * 双精度的矩形，用于记录图片在视图中的位置。放大很大的图片时，float的边和缩放值
+ * 会在连续的手势中累积误差，块的位置只在生成绘制区域时才换算为视图像素
+ */
+class DoubleRect {
+    double left, top, right, bottom;
+
+    DoubleRect() {
+
+    }
+
+    DoubleRect(DoubleRect rect) {
+        set(rect);
+    }
+
+    void set(DoubleRect rect) {
+        left = rect.left;
+        top = rect.top;
+        right = rect.right;
+        bottom = rect.bottom;
+    }
+
+    void set(RectF rect) {
+        left = rect.left;
+        top = rect.top;
+        right = rect.right;
+        bottom = rect.bottom;
+    }
+
+    void setEmpty() {
+        left = top = right = bottom = 0;
+    }
+
+    boolean isEmpty() {
+        return left >= right || top >= bottom;
+    }
+
+    double width() {
+        return right - left;
+    }
+
+    double height() {
+        return bottom - top;
+    }
+
+    void offset(double dx, double dy) {
+        left += dx;
+        right += dx;
+        top += dy;
+        bottom += dy;
+    }
+
+    /**
+     * 以(focusX, focusY)为中心缩放
+     */
+    void scale(double scale, double focusX, double focusY) {
+        left = focusX + (left - focusX) * scale;
+        top = focusY + (top - focusY) * scale;
+        right = focusX + (right - focusX) * scale;
+        bottom = focusY + (bottom - focusY) * scale;
+    }
+
+    void evaluate(double fraction, DoubleRect start, DoubleRect end) {
+        left = start.left + (end.left - start.left) * fraction;
+        top = start.top + (end.top - start.top) * fraction;
+        right = start.right + (end.right - start.right) * fraction;
+        bottom = start.bottom + (end.bottom - start.bottom) * fraction;
+    }
+
+    /**
+     * 与{@link Utils#home(RectF, Rect)}相同，小于frame时居中，否则不留出空白
+     */
+    void home(Rect frame) {
+        if (height() < frame.height()) {
+            offset(0, (frame.top + frame.bottom) / 2.0 - (top + bottom) / 2);
+        } else if (top > frame.top) {
+            offset(0, frame.top - top);
+        } else if (bottom < frame.bottom) {
+            offset(0, frame.bottom - bottom);
+        }
+
+        if (width() < frame.width()) {
+            offset((frame.left + frame.right) / 2.0 - (left + right) / 2, 0);
+        } else if (left > frame.left) {
+            offset(frame.left - left, 0);
+        } else if (right < frame.right) {
+            offset(frame.right - right, 0);
+        }
+    }
+
+    boolean contains(Rect rect) {
+        return left <= rect.left && top <= rect.top && right >= rect.right && bottom >= rect.bottom;
+    }
+
+    /**
+     * @param view  视图中的区域
+     * @param scale 缩放值
+     * @return 与图片相交的部分在原图中的位置，不相交时返回空区域
+     */
+    Rect toImage(Rect view, double scale) {
+        double l = Math.max(view.left, left), t = Math.max(view.top, top);
+        double r = Math.min(view.right, right), b = Math.min(view.bottom, bottom);
+        if (l >= r || t >= b) return new Rect();
+        return new Rect((int) Math.floor((l - left) / scale), (int) Math.floor((t - top) / scale),
+                (int) Math.ceil((r - left) / scale), (int) Math.ceil((b - top) / scale));
+    }
+
+    /**
+     * @param image 原图中的区域
+     * @param scale 缩放值
+     * @return 在视图中的位置，相邻的区域边缘重合
+     */
+    Rect toView(Rect image, double scale) {
+        return new Rect((int) Math.round(left + image.left * scale), (int) Math.round(top + image.top * scale),
+                (int) Math.round(left + image.right * scale), (int) Math.round(top + image.bottom * scale));
+    }
+
+    RectF toRectF(RectF out) {
+        out.set((float) left, (float) top, (float) right, (float) bottom);
+        return out;
+    }
+
+    Rect round() {
+        return new Rect((int) Math.round(left), (int) Math.round(top),
+                (int) Math.round(right), (int) Math.round(bottom));
+    }
+
+    @Override
+    public String toString() {
+        return "DoubleRect(" + left + ", " + top + ", " + right + ", " + bottom + ")";
+    }
+}
@@ -0,0 +1,193 @@
+package me.kareluo.intensify.image;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Frequency aware eviction policy in the way of W-TinyLFU.
+ * New entries enter a small LRU window, entries leaving the window become
+ * candidates of the main area and replace its least recently used entry only
+ * if they were accessed more often, so a long scan can not flush the entries
+ * accessed again and again.
+ */
+public class FrequencyPolicy<K> extends IntensifyCache.EvictionPolicy<K> {
+
+    private static final float WINDOW_PERCENT = 0.25f;
+
+    private static final int SKETCH_WIDTH = 1024;
+
+    private final float mWindowPercent;
+
+    private final LinkedHashMap<K, Integer> mWindow = new LinkedHashMap<>(0, 0.75f, true);
+
+    private final LinkedHashMap<K, Integer> mMain = new LinkedHashMap<>(0, 0.75f, true);
+
+    private K mCandidate;
+
+    private final FrequencySketch mSketch;
+
+    private int mWindowSize;
+
+    private int mWindowMaxSize = 1;
+
+    public FrequencyPolicy() {
+        this(WINDOW_PERCENT, SKETCH_WIDTH);
+    }
+
+    /**
+     * @param windowPercent the part of the max size kept for new entries, in (0, 1).
+     * @param sketchWidth   the number of counters of each row of the frequency sketch.
+     */
+    public FrequencyPolicy(float windowPercent, int sketchWidth) {
+        if (!Utils.strictInRange(windowPercent, 0f, 1f)) {
+            throw new IllegalArgumentException("windowPercent not in (0, 1)");
+        }
+        mWindowPercent = windowPercent;
+        mSketch = new FrequencySketch(sketchWidth);
+    }
+
+    @Override
+    public void onMaxSizeChanged(int maxSize) {
+        mWindowMaxSize = Math.max(1, Math.round(maxSize * mWindowPercent));
+        drainWindow();
+    }
+
+    @Override
+    public void onAccess(K key) {
+        mSketch.increment(key);
+        if (mWindow.get(key) == null) {
+            mMain.get(key);
+        }
+    }
+
+    @Override
+    public void onInsert(K key, int size) {
+        mWindow.put(key, size);
+        mWindowSize += size;
+        drainWindow();
+    }
+
+    @Override
+    public void onRemove(K key) {
+        Integer size = mWindow.remove(key);
+        if (size != null) {
+            mWindowSize -= size;
+        } else {
+            mMain.remove(key);
+        }
+        if (key.equals(mCandidate)) {
+            mCandidate = null;
+        }
+    }
+
+    @Override
+    public K selectVictim(Set<K> keys) {
+        K candidate = pollCandidate();
+        K victim = first(mMain, candidate);
+        if (candidate == null || victim == null) {
+            return victim != null ? victim : candidate != null ? candidate : first(mWindow, null);
+        }
+        return mSketch.frequency(candidate) > mSketch.frequency(victim) ? victim : candidate;
+    }
+
+    /**
+     * Move the entries beyond the window size to the main area as candidates.
+     */
+    private void drainWindow() {
+        Iterator<Map.Entry<K, Integer>> iterator = mWindow.entrySet().iterator();
+        while (mWindowSize > mWindowMaxSize && mWindow.size() > 1) {
+            Map.Entry<K, Integer> entry = iterator.next();
+            iterator.remove();
+            mWindowSize -= entry.getValue();
+            mMain.put(entry.getKey(), entry.getValue());
+            mCandidate = entry.getKey();
+        }
+    }
+
+    /**
+     * The latest entry left the window, the earlier ones are taken as admitted.
+     */
+    private K pollCandidate() {
+        K candidate = mCandidate;
+        mCandidate = null;
+        return candidate != null && mMain.containsKey(candidate) ? candidate : null;
+    }
+
+    private static <K> K first(LinkedHashMap<K, Integer> map, K exclude) {
+        for (K key : map.keySet()) {
+            if (!key.equals(exclude)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, halved periodically so that old
+     * accesses fade out.
+     */
+    static class FrequencySketch {
+        private static final int[] SEEDS = {0x97CB3127, 0xB71C9D69, 0x6F1F7B05, 0xF4B3C5A1};
+
+        private static final int MAX_FREQUENCY = 15;
+
+        private final byte[][] mTable;
+
+        private final int mMask;
+
+        private final int mSampleSize;
+
+        private int mAdditions;
+
+        FrequencySketch(int width) {
+            width = Utils.getSampleSize(Math.max(width, 16));
+            mTable = new byte[SEEDS.length][width];
+            mMask = width - 1;
+            mSampleSize = width * 10;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                if (mTable[i][index] < MAX_FREQUENCY) {
+                    mTable[i][index]++;
+                }
+            }
+            if (++mAdditions >= mSampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_FREQUENCY;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, mTable[i][indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            for (byte[] row : mTable) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            mAdditions >>= 1;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x85EBCA6B;
+            h ^= h >>> 13;
+            return h & mMask;
+        }
+
+        private static int spread(int hash) {
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
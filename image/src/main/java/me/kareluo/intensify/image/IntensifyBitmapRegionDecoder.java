@@ -0,0 +1,43 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+/**
+ * 由{@link BitmapRegionDecoder}解码的单个文件
+ */
+public class IntensifyBitmapRegionDecoder implements IntensifyRegionDecoder {
+
+    private final BitmapRegionDecoder mDecoder;
+
+    public IntensifyBitmapRegionDecoder(BitmapRegionDecoder decoder) {
+        mDecoder = Utils.requireNonNull(decoder);
+    }
+
+    @Override
+    public int getWidth() {
+        return mDecoder.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mDecoder.getHeight();
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+        return mDecoder.decodeRegion(rect, options);
+    }
+
+    @Override
+    public void recycle() {
+        mDecoder.recycle();
+    }
+
+    @Override
+    public boolean isRecycled() {
+        return mDecoder.isRecycled();
+    }
+}
@@ -1,8 +1,10 @@
 package me.kareluo.intensify.image;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by felix on 16/5/18.
@@ -25,6 +27,14 @@ public class IntensifyCache<K, V, L> {
 
     protected L level;
 
+    private EvictionPolicy<K> policy;
+
+    private AccessTrace<K> trace;
+
+    private final HashMap<K, InFlight<V>> inFlight = new HashMap<>();
+
+    private int dedupCount;
+
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
      *                the maximum number of entries in the cache. For all other caches,
@@ -55,10 +65,38 @@ public class IntensifyCache<K, V, L> {
 
         synchronized (this) {
             this.maxSize = maxSize;
+            if (policy != null) {
+                policy.onMaxSizeChanged(maxSize);
+            }
         }
         trimToSize(maxSize);
     }
 
+    /**
+     * Sets the policy used by {@link #trimToSize} to pick entries to evict.
+     *
+     * @param policy the eviction policy, null to evict in LRU order.
+     */
+    public synchronized void setEvictionPolicy(EvictionPolicy<K> policy) {
+        this.policy = policy;
+        if (policy != null) {
+            policy.onMaxSizeChanged(maxSize);
+            for (Map.Entry<K, V> entry : map.entrySet()) {
+                policy.onInsert(entry.getKey(), safeSizeOf(entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Records the keys looked up and the sizes of the entries added, so the
+     * accesses can be replayed against other policies.
+     *
+     * @param trace the trace to record into, null to stop recording.
+     */
+    public synchronized void setAccessTrace(AccessTrace<K> trace) {
+        this.trace = trace;
+    }
+
     /**
      * Returns the value for {@code key} if it exists in the cache or can be
      * created by {@code #create}. If a value was returned, it is moved to the
@@ -76,6 +114,7 @@ public class IntensifyCache<K, V, L> {
         V mapValue;
         synchronized (this) {
             mapValue = map.get(key);
+            onAccess(key);
             if (mapValue != null) {
                 hitCount++;
                 return mapValue;
@@ -88,6 +127,49 @@ public class IntensifyCache<K, V, L> {
             return alternative;
         }
 
+        return createOnce(key);
+    }
+
+    /**
+     * Creates the value of the key, concurrent callers missing on the same key
+     * wait for the first one and share its value instead of creating it again.
+     *
+     * @param key the key of the value.
+     * @return the value of the key.
+     */
+    private V createOnce(K key) {
+        InFlight<V> flight;
+        synchronized (this) {
+            // A creator may have finished since the caller missed the map.
+            V mapValue = map.get(key);
+            if (mapValue != null) {
+                return mapValue;
+            }
+            flight = inFlight.get(key);
+            if (flight != null) {
+                dedupCount++;
+            } else {
+                inFlight.put(key, new InFlight<V>());
+            }
+        }
+
+        if (flight != null) {
+            return flight.await();
+        }
+
+        V value = null;
+        try {
+            value = createAndPut(key);
+        } finally {
+            synchronized (this) {
+                flight = inFlight.remove(key);
+            }
+            flight.complete(value);
+        }
+        return value;
+    }
+
+    private V createAndPut(K key) {
         /*
          * Attempt to create a value. This may take a long time, and the map
          * may be different when create() returns. If a conflicting value was
@@ -95,6 +177,7 @@ public class IntensifyCache<K, V, L> {
          * the map and release the created value.
          */
 
+        V mapValue;
         V createdValue = create(key);
         if (createdValue == null) {
             return null;
@@ -108,7 +191,9 @@ public class IntensifyCache<K, V, L> {
                 // There was a conflict so undo that last put
                 map.put(key, mapValue);
             } else {
-                size += safeSizeOf(key, createdValue);
+                int entrySize = safeSizeOf(key, createdValue);
+                size += entrySize;
+                onInsert(key, entrySize);
             }
         }
 
@@ -121,6 +206,32 @@ public class IntensifyCache<K, V, L> {
         }
     }
 
+    /**
+     * A value being created by {@link #create}.
+     */
+    private static class InFlight<V> {
+        private V value;
+        private boolean done = false;
+
+        synchronized void complete(V value) {
+            this.value = value;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized V await() {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return value;
+        }
+    }
+
     /**
      * original get method.
      *
@@ -135,6 +246,7 @@ public class IntensifyCache<K, V, L> {
         V mapValue;
         synchronized (this) {
             mapValue = map.get(key);
+            onAccess(key);
             if (mapValue != null) {
                 hitCount++;
                 return mapValue;
@@ -142,37 +254,17 @@ public class IntensifyCache<K, V, L> {
             missCount++;
         }
 
-        /*
-         * Attempt to create a value. This may take a long time, and the map
-         * may be different when create() returns. If a conflicting value was
-         * added to the map while create() was working, we leave that value in
-         * the map and release the created value.
-         */
-
-        V createdValue = create(key);
-        if (createdValue == null) {
-            return null;
-        }
-
-        synchronized (this) {
-            createCount++;
-            mapValue = map.put(key, createdValue);
-
-            if (mapValue != null) {
-                // There was a conflict so undo that last put
-                map.put(key, mapValue);
-            } else {
-                size += safeSizeOf(key, createdValue);
-            }
-        }
+        return createOnce(key);
+    }
 
-        if (mapValue != null) {
-            entryRemoved(false, key, createdValue, mapValue);
-            return mapValue;
-        } else {
-            trimToSize(maxSize);
-            return createdValue;
-        }
+    /**
+     * Returns whether the key is cached, without counting an access.
+     *
+     * @param key the cache key.
+     * @return true if the value of the key is cached.
+     */
+    public synchronized final boolean contains(K key) {
+        return map.containsKey(key);
     }
 
     /**
@@ -189,6 +281,7 @@ public class IntensifyCache<K, V, L> {
         V mapValue;
         synchronized (this) {
             mapValue = map.get(key);
+            onAccess(key);
             if (mapValue != null) {
                 hitCount++;
                 return mapValue;
@@ -213,6 +306,7 @@ public class IntensifyCache<K, V, L> {
         V mapValue;
         synchronized (this) {
             mapValue = map.get(key);
+            onAccess(key);
             if (mapValue != null) {
                 hitCount++;
                 return mapValue;
@@ -250,11 +344,14 @@ public class IntensifyCache<K, V, L> {
         V previous;
         synchronized (this) {
             putCount++;
-            size += safeSizeOf(key, value);
+            int entrySize = safeSizeOf(key, value);
+            size += entrySize;
             previous = map.put(key, value);
             if (previous != null) {
                 size -= safeSizeOf(key, previous);
+                onRemove(key);
             }
+            onInsert(key, entrySize);
         }
 
         if (previous != null) {
@@ -286,10 +383,9 @@ public class IntensifyCache<K, V, L> {
                     break;
                 }
 
-                Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
-                key = toEvict.getKey();
-                value = toEvict.getValue();
-                map.remove(key);
+                key = selectVictim();
+                value = map.remove(key);
+                onRemove(key);
                 size -= safeSizeOf(key, value);
                 evictionCount++;
             }
@@ -298,6 +394,38 @@ public class IntensifyCache<K, V, L> {
         }
     }
 
+    /**
+     * Evicts the entry picked by the eviction policy, or the least recently
+     * accessed one.
+     *
+     * @return false if the cache is empty.
+     */
+    public boolean evict() {
+        K key;
+        V value;
+        synchronized (this) {
+            if (map.isEmpty()) {
+                return false;
+            }
+            key = selectVictim();
+            value = map.remove(key);
+            onRemove(key);
+            size -= safeSizeOf(key, value);
+            evictionCount++;
+        }
+
+        entryRemoved(true, key, value, null);
+        return true;
+    }
+
+    private K selectVictim() {
+        K key = policy != null ? policy.selectVictim(map.keySet()) : null;
+        if (key == null || !map.containsKey(key)) {
+            key = map.keySet().iterator().next();
+        }
+        return key;
+    }
+
     /**
      * Removes the entry for {@code key} if it exists.
      *
@@ -314,6 +442,7 @@ public class IntensifyCache<K, V, L> {
             previous = map.remove(key);
             if (previous != null) {
                 size -= safeSizeOf(key, previous);
+                onRemove(key);
             }
         }
 
@@ -351,10 +480,9 @@ public class IntensifyCache<K, V, L> {
      * access the cache while this method is executing.
      * If a value for {@code key} exists in the cache when this method
      * returns, the created value will be released with {@link #entryRemoved}
-     * and discarded. This can occur when multiple threads request the same key
-     * at the same time (causing multiple values to be created), or when one
-     * thread calls {@link #put} while another is creating a value for the same
-     * key.
+     * and discarded. This can occur when one thread calls {@link #put} while
+     * another is creating a value for the same key. Threads missing on a key
+     * whose value is being created wait for it instead of calling this again.
      *
      * @param key the key of the value.
      * @return the value of the key.
@@ -363,6 +491,20 @@ public class IntensifyCache<K, V, L> {
         return null;
     }
 
+    private void onAccess(K key) {
+        if (policy != null) policy.onAccess(key);
+        if (trace != null) trace.record(key);
+    }
+
+    private void onInsert(K key, int entrySize) {
+        if (policy != null) policy.onInsert(key, entrySize);
+        if (trace != null) trace.recordSize(key, entrySize);
+    }
+
+    private void onRemove(K key) {
+        if (policy != null) policy.onRemove(key);
+    }
+
     private int safeSizeOf(K key, V value) {
         int result = sizeOf(key, value);
         if (result < 0) {
@@ -443,6 +585,16 @@ public class IntensifyCache<K, V, L> {
         return createCount;
     }
 
+    /**
+     * Returns the number of times a miss waited for the value being created
+     * for the same key by another thread instead of creating it again.
+     *
+     * @return the dedupCount.
+     */
+    public synchronized final int dedupCount() {
+        return dedupCount;
+    }
+
     /**
      * Returns the number of times {@link #put} was called.
      *
@@ -471,11 +623,60 @@ public class IntensifyCache<K, V, L> {
         return new LinkedHashMap<K, V>(map);
     }
 
+    /**
+     * Picks the entry to evict when the cache is over its max size. All methods
+     * are called with the lock of the cache held, and an instance must not be
+     * shared by several caches.
+     */
+    public abstract static class EvictionPolicy<K> {
+
+        /**
+         * Called when the policy is set and when the cache is resized.
+         *
+         * @param maxSize the max size of the cache.
+         */
+        public void onMaxSizeChanged(int maxSize) {
+        }
+
+        /**
+         * Called for every lookup, whether it hits or not.
+         *
+         * @param key the key looked up.
+         */
+        public void onAccess(K key) {
+        }
+
+        /**
+         * Called after an entry was added to the cache.
+         *
+         * @param key  the key of the entry.
+         * @param size the size of the entry.
+         */
+        public void onInsert(K key, int size) {
+        }
+
+        /**
+         * Called after an entry was evicted, removed or replaced.
+         *
+         * @param key the key of the entry.
+         */
+        public void onRemove(K key) {
+        }
+
+        /**
+         * @param keys the cached keys, ordered from least recently accessed to most
+         *             recently accessed.
+         * @return the key to evict, or null to evict the least recently accessed one.
+         */
+        public abstract K selectVictim(Set<K> keys);
+    }
+
     @Override
     public synchronized final String toString() {
         int accesses = hitCount + missCount;
         int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
-        return String.format(Locale.ROOT, "LruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
-                maxSize, hitCount, missCount, hitPercent);
+        return String.format(Locale.ROOT,
+                "LruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%,dedups=%d]",
+                maxSize, hitCount, missCount, hitPercent, dedupCount);
     }
 }
@@ -0,0 +1,543 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory.Options;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.DisplayMetrics;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import me.kareluo.intensify.image.IntensifyImageDelegate.ImageDrawable;
+
+/**
+ * 在一块可缩放的画布上按网格排列多张图片：缩小时只显示缩略图，图片在屏幕上变大后
+ * 改为按级别解码可见的块。所有图片的缩略图和块共用一个内存上限，由同一个工作线程解码，
+ * 区域解码器只为最近用到的几张图片保持打开
+ */
+class IntensifyCollectionDelegate {
+
+    private static final String TAG = "IntensifyCollectionDelegate";
+
+    private static final int BLOCK_SIZE = 300;
+
+    private static final int MAX_DECODERS = 6;
+
+    private static final int MIN_THUMBNAIL_SIZE = 64;
+
+    private static final float MAX_ITEM_SCALE = 16f;
+
+    private final TileCache mTiles;
+
+    private final DecoderCache mDecoders = new DecoderCache(MAX_DECODERS);
+
+    private final ArrayDeque<Tile> mPending = new ArrayDeque<>();
+
+    private final Handler mHandler;
+
+    private final Callback mCallback;
+
+    private volatile List<Item> mItems = Collections.emptyList();
+
+    private volatile IntensifyMetadataIndex mMetadataIndex;
+
+    private int mColumns = 4;
+
+    private int mSpacing = 0;
+
+    private int mThumbnailSize = 0;
+
+    private volatile int mViewWidth, mViewHeight;
+
+    private volatile int mGeneration = 0;
+
+    private float mScale = 1f;
+
+    private float mMaximumScale = 0f;
+
+    private float mOffsetX, mOffsetY;
+
+    private boolean mScheduled = false;
+
+    private final Runnable mDecodeNext = new Runnable() {
+        @Override
+        public void run() {
+            decodeNext();
+        }
+    };
+
+    IntensifyCollectionDelegate(DisplayMetrics metrics, Callback callback) {
+        mTiles = new TileCache(metrics.widthPixels * metrics.heightPixels << 4);
+        mCallback = Utils.requireNonNull(callback);
+        HandlerThread handlerThread = new HandlerThread(TAG);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper());
+    }
+
+    /**
+     * 设置显示的图片，已解码的缩略图和块全部回收
+     *
+     * @param decoders 图片源
+     */
+    public void setImages(List<? extends IntensifyImageDecoder> decoders) {
+        List<Item> items = new ArrayList<>(decoders.size());
+        IntensifyMetadataIndex index = mMetadataIndex;
+        int generation = ++mGeneration;
+        for (IntensifyImageDecoder decoder : decoders) {
+            Item item = new Item(decoder, generation);
+            IntensifyMetadataIndex.Metadata metadata = index != null ? index.get(decoder.getKey()) : null;
+            if (metadata != null) {
+                item.mWidth = metadata.getWidth();
+                item.mHeight = metadata.getHeight();
+                item.mIndexed = true;
+            }
+            items.add(item);
+        }
+        mItems = Collections.unmodifiableList(items);
+        synchronized (mPending) {
+            mPending.clear();
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTiles.evictAll();
+                mDecoders.evictAll();
+            }
+        });
+        mScale = 1f;
+        mOffsetX = mOffsetY = 0;
+        mCallback.onRequestInvalidate();
+    }
+
+    public int getCount() {
+        return mItems.size();
+    }
+
+    public void setColumns(int columns) {
+        if (columns <= 0) {
+            throw new IllegalArgumentException("columns <= 0");
+        }
+        mColumns = columns;
+        clamp();
+        mCallback.onRequestInvalidate();
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public void setSpacing(int spacing) {
+        mSpacing = Math.max(spacing, 0);
+        mCallback.onRequestInvalidate();
+    }
+
+    public int getSpacing() {
+        return mSpacing;
+    }
+
+    /**
+     * @param thumbnailSize 缩略图短边的最小值，0时使用格子的大小
+     */
+    public void setThumbnailSize(int thumbnailSize) {
+        mThumbnailSize = Math.max(thumbnailSize, 0);
+    }
+
+    public int getThumbnailSize() {
+        return mThumbnailSize;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        mTiles.resize(cacheSize);
+    }
+
+    public int getCacheSize() {
+        return mTiles.maxSize();
+    }
+
+    public void setMaximumScale(float scale) {
+        mMaximumScale = scale;
+        clamp();
+    }
+
+    public float getMaximumScale() {
+        return mMaximumScale > 1f ? mMaximumScale : mColumns * MAX_ITEM_SCALE;
+    }
+
+    public void setMetadataIndex(IntensifyMetadataIndex metadataIndex) {
+        mMetadataIndex = metadataIndex;
+    }
+
+    public void setViewport(int width, int height) {
+        mViewWidth = width;
+        mViewHeight = height;
+        clamp();
+    }
+
+    public float getScale() {
+        return mScale;
+    }
+
+    public float getOffsetX() {
+        return mOffsetX;
+    }
+
+    public float getOffsetY() {
+        return mOffsetY;
+    }
+
+    /**
+     * @return 画布在当前缩放值下的宽度
+     */
+    public int getContentWidth() {
+        return Math.round(mViewWidth * mScale);
+    }
+
+    /**
+     * @return 画布在当前缩放值下的高度
+     */
+    public int getContentHeight() {
+        int rows = (mItems.size() + mColumns - 1) / mColumns;
+        return Math.round(rows * getPitch() * mScale);
+    }
+
+    public void scale(float factor, float focusX, float focusY) {
+        float scale = Utils.range(mScale * factor, 1f, getMaximumScale());
+        factor = scale / mScale;
+        mOffsetX = (mOffsetX + focusX) * factor - focusX;
+        mOffsetY = (mOffsetY + focusY) * factor - focusY;
+        mScale = scale;
+        clamp();
+    }
+
+    public void scrollTo(float x, float y) {
+        mOffsetX = x;
+        mOffsetY = y;
+        clamp();
+    }
+
+    /**
+     * 缩放到图片正好占满视图宽度并居中
+     *
+     * @param index 图片的位置
+     */
+    public void focus(int index) {
+        if (index < 0 || index >= mItems.size()) return;
+        float pitch = getPitch();
+        mScale = Utils.range(mColumns, 1f, getMaximumScale());
+        mOffsetX = ((index % mColumns) + 0.5f) * pitch * mScale - mViewWidth / 2f;
+        mOffsetY = ((index / mColumns) + 0.5f) * pitch * mScale - mViewHeight / 2f;
+        clamp();
+    }
+
+    /**
+     * @return 视图中的点所在的图片位置，不在任何图片上时返回-1
+     */
+    public int indexAt(float x, float y) {
+        float pitch = getPitch() * mScale;
+        if (pitch <= 0) return -1;
+        int column = Utils.floor((x + mOffsetX) / pitch);
+        int row = Utils.floor((y + mOffsetY) / pitch);
+        if (column < 0 || column >= mColumns || row < 0) return -1;
+        int index = row * mColumns + column;
+        return index < mItems.size() ? index : -1;
+    }
+
+    private float getPitch() {
+        return 1f * mViewWidth / mColumns;
+    }
+
+    private void clamp() {
+        mScale = Utils.range(mScale, 1f, getMaximumScale());
+        float maxX = Math.max(getContentWidth() - mViewWidth, 0);
+        float maxY = Math.max(getContentHeight() - mViewHeight, 0);
+        mOffsetX = Utils.range(mOffsetX, 0, maxX);
+        mOffsetY = Utils.range(mOffsetY, 0, maxY);
+    }
+
+    /**
+     * 计算可见图片需要绘制的缩略图和块，缺少的按缩略图优先的顺序交给工作线程解码
+     *
+     * @return 按绘制顺序排列，缩略图在块之下
+     */
+    public List<ImageDrawable> obtainImageDrawables() {
+        List<ImageDrawable> drawables = new ArrayList<>();
+        List<Item> items = mItems;
+        float pitch = getPitch() * mScale;
+        if (items.isEmpty() || pitch <= 0 || mViewHeight <= 0) return drawables;
+
+        Rect viewport = new Rect(0, 0, mViewWidth, mViewHeight);
+        int firstRow = Utils.floor(mOffsetY / pitch);
+        int lastRow = Utils.ceil((mOffsetY + mViewHeight) / pitch);
+        int firstColumn = Math.max(Utils.floor(mOffsetX / pitch), 0);
+        int lastColumn = Math.min(Utils.ceil((mOffsetX + mViewWidth) / pitch), mColumns);
+        float inset = mSpacing / 2f;
+
+        List<Tile> thumbnails = new ArrayList<>();
+        List<Tile> blocks = new ArrayList<>();
+        List<ImageDrawable> tiles = new ArrayList<>();
+        for (int row = Math.max(firstRow, 0); row < lastRow; row++) {
+            for (int column = firstColumn; column < lastColumn; column++) {
+                int index = row * mColumns + column;
+                if (index >= items.size()) break;
+                Item item = items.get(index);
+                if (item.mFailed) continue;
+
+                RectF frame = new RectF(column * pitch - mOffsetX, row * pitch - mOffsetY,
+                        (column + 1) * pitch - mOffsetX, (row + 1) * pitch - mOffsetY);
+                frame.inset(inset, inset);
+                if (frame.isEmpty()) continue;
+
+                Tile thumbnail = new Tile(item, 0, 0, 0);
+                Bitmap bitmap = mTiles.justGet(thumbnail);
+                if (bitmap == null || bitmap.isRecycled()) {
+                    thumbnails.add(thumbnail);
+                }
+                if (item.mWidth <= 0 || item.mHeight <= 0) continue;
+
+                RectF area = new RectF(0, 0, item.mWidth, item.mHeight);
+                float scale = Math.min(frame.width() / item.mWidth, frame.height() / item.mHeight);
+                area.right *= scale;
+                area.bottom *= scale;
+                area.offset(frame.centerX() - area.centerX(), frame.centerY() - area.centerY());
+
+                if (bitmap != null && !bitmap.isRecycled()) {
+                    drawables.add(new ImageDrawable(bitmap, new Rect(0, 0, bitmap.getWidth(),
+                            bitmap.getHeight()), Utils.round(area), item.mOrientation));
+                }
+
+                int level = IntensifyImageDelegate.getSampleSize(1f / scale);
+                if (item.mThumbnailLevel <= 0 || level >= item.mThumbnailLevel) continue;
+                obtainBlocks(item, level, scale, area, viewport, tiles, blocks);
+            }
+        }
+        drawables.addAll(tiles);
+
+        thumbnails.addAll(blocks);
+        schedule(thumbnails);
+        return drawables;
+    }
+
+    /**
+     * 图片中可见部分的块，已解码的加入drawables，缺少的加入missing
+     */
+    private void obtainBlocks(Item item, int level, float scale, RectF area, Rect viewport,
+                              List<ImageDrawable> drawables, List<Tile> missing) {
+        RectF visible = new RectF(area);
+        if (!visible.intersect(viewport.left, viewport.top, viewport.right, viewport.bottom)) return;
+        visible.offset(-area.left, -area.top);
+        visible.set(visible.left / scale, visible.top / scale,
+                visible.right / scale, visible.bottom / scale);
+
+        int size = BLOCK_SIZE * level;
+        Rect blocks = Utils.blocks(visible, size);
+        Rect image = new Rect(0, 0, item.mWidth, item.mHeight);
+        for (int y = blocks.top; y < blocks.bottom; y++) {
+            for (int x = blocks.left; x < blocks.right; x++) {
+                Tile tile = new Tile(item, level, x, y);
+                Bitmap bitmap = mTiles.justGet(tile);
+                if (bitmap == null || bitmap.isRecycled()) {
+                    missing.add(tile);
+                    continue;
+                }
+                Rect rect = IntensifyImageCache.blockRect(x, y, size);
+                if (!rect.intersect(image)) continue;
+                RectF dst = new RectF(area.left + rect.left * scale, area.top + rect.top * scale,
+                        area.left + rect.right * scale, area.top + rect.bottom * scale);
+                drawables.add(new ImageDrawable(bitmap, new Rect(0, 0, bitmap.getWidth(),
+                        bitmap.getHeight()), Utils.round(dst), item.mOrientation));
+            }
+        }
+    }
+
+    /**
+     * 用最新一帧缺少的缩略图和块替换等待解码的队列
+     */
+    private void schedule(List<Tile> tiles) {
+        synchronized (mPending) {
+            mPending.clear();
+            mPending.addAll(tiles);
+            if (mPending.isEmpty() || mScheduled) return;
+            mScheduled = true;
+        }
+        mHandler.post(mDecodeNext);
+    }
+
+    //@WorkerThread
+    private void decodeNext() {
+        Tile tile;
+        synchronized (mPending) {
+            tile = mPending.poll();
+            if (tile == null) {
+                mScheduled = false;
+                return;
+            }
+        }
+        if (tile.mItem.mGeneration == mGeneration && !mTiles.contains(tile)) {
+            if (mTiles.createGet(tile) != null) {
+                mCallback.onRequestInvalidate();
+            }
+        }
+        mHandler.post(mDecodeNext);
+    }
+
+    /**
+     * 结束工作线程并回收全部缩略图、块和区域解码器
+     */
+    public void onDetached() {
+        synchronized (mPending) {
+            mPending.clear();
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTiles.evictAll();
+                mDecoders.evictAll();
+                mHandler.getLooper().quit();
+            }
+        });
+    }
+
+    //@WorkerThread
+    private Bitmap decode(Tile tile) {
+        Item item = tile.mItem;
+        IntensifyRegionDecoder decoder = mDecoders.createGet(item);
+        if (decoder == null) return null;
+        Rect image = new Rect(0, 0, item.mWidth, item.mHeight);
+        Options options = new Options();
+        if (tile.mLevel == 0) {
+            int size = mThumbnailSize > 0 ? mThumbnailSize
+                    : Math.max(Math.round(getPitch()), MIN_THUMBNAIL_SIZE);
+            options.inSampleSize = IntensifyThumbnailLoader.getThumbnailSampleSize(
+                    item.mWidth, item.mHeight, size);
+            Bitmap bitmap = decoder.decodeRegion(image, options);
+            if (bitmap != null) {
+                item.mThumbnailLevel = options.inSampleSize;
+                IntensifyMetadataIndex index = mMetadataIndex;
+                if (index != null && !item.mIndexed) {
+                    index.put(item.mDecoder.getKey(), item.mWidth, item.mHeight, null, bitmap);
+                    item.mIndexed = true;
+                }
+            }
+            return bitmap;
+        }
+        Rect rect = IntensifyImageCache.blockRect(tile.mX, tile.mY, BLOCK_SIZE * tile.mLevel);
+        if (!rect.intersect(image)) return null;
+        options.inSampleSize = tile.mLevel;
+        return decoder.decodeRegion(rect, options);
+    }
+
+    public interface Callback {
+        void onRequestInvalidate();
+    }
+
+    private static class Item {
+        final IntensifyImageDecoder mDecoder;
+
+        final int mGeneration;
+
+        volatile int mWidth, mHeight;
+
+        volatile int mThumbnailLevel = 0;
+
+        volatile int mOrientation = ExifInterface.ORIENTATION_NORMAL;
+
+        volatile boolean mFailed = false;
+
+        boolean mIndexed = false;
+
+        Item(IntensifyImageDecoder decoder, int generation) {
+            mDecoder = Utils.requireNonNull(decoder);
+            mGeneration = generation;
+        }
+    }
+
+    /**
+     * 图片中的一块，级别为0时表示整张图片的缩略图
+     */
+    private static class Tile {
+        final Item mItem;
+
+        final int mLevel, mX, mY;
+
+        Tile(Item item, int level, int x, int y) {
+            mItem = item;
+            mLevel = level;
+            mX = x;
+            mY = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Tile)) return false;
+            Tile that = (Tile) o;
+            return mItem == that.mItem && mLevel == that.mLevel && mX == that.mX && mY == that.mY;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((System.identityHashCode(mItem) * 31 + mLevel) * 31 + mX) * 31 + mY;
+        }
+    }
+
+    private class TileCache extends IntensifyCache<Tile, Bitmap, Void> {
+
+        TileCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected Bitmap create(Tile key) {
+            return decode(key);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Tile key, Bitmap oldValue, Bitmap newValue) {
+            if (oldValue != null) oldValue.recycle();
+        }
+
+        @Override
+        protected int sizeOf(Tile key, Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+    }
+
+    /**
+     * 最近用到的图片的区域解码器，超出数量时关闭最久未用的
+     */
+    private class DecoderCache extends IntensifyCache<Item, IntensifyRegionDecoder, Void> {
+
+        DecoderCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected IntensifyRegionDecoder create(Item key) {
+            try {
+                IntensifyRegionDecoder decoder = Orientation.open(key.mDecoder);
+                key.mWidth = decoder.getWidth();
+                key.mHeight = decoder.getHeight();
+                key.mOrientation = Orientation.of(decoder);
+                return decoder;
+            } catch (IOException e) {
+                Logger.w(TAG, e);
+                key.mFailed = true;
+                return null;
+            }
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Item key, IntensifyRegionDecoder oldValue,
+                                    IntensifyRegionDecoder newValue) {
+            if (oldValue != null) oldValue.recycle();
+        }
+    }
+}
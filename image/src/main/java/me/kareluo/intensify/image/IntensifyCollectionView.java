@@ -0,0 +1,286 @@
+package me.kareluo.intensify.image;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+import android.widget.OverScroller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.kareluo.intensify.image.IntensifyImageDelegate.ImageDrawable;
+
+/**
+ * 用一个视图显示大量图片：按网格排列在可缩放的画布上，缩小时显示缩略图，
+ * 放大到单张图片后按块解码，所有图片共用一个内存上限和一个工作线程
+ */
+public class IntensifyCollectionView extends View implements IntensifyCollectionDelegate.Callback {
+
+    private Paint mPaint;
+
+    private Matrix mMatrix = new Matrix();
+
+    private OverScroller mScroller;
+
+    private ScaleGestureDetector mScaleGestureDetector;
+
+    private GestureDetector mGestureDetector;
+
+    private IntensifyCollectionDelegate mDelegate;
+
+    private OnItemClickListener mOnItemClickListener;
+
+    public IntensifyCollectionView(Context context) {
+        this(context, null, 0);
+    }
+
+    public IntensifyCollectionView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public IntensifyCollectionView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        initialize(context, attrs, defStyleAttr);
+    }
+
+    protected void initialize(Context context, AttributeSet attrs, int defStyleAttr) {
+        mDelegate = new IntensifyCollectionDelegate(getResources().getDisplayMetrics(), this);
+        mPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        mScroller = new OverScroller(context);
+        GestureAdapter adapter = new GestureAdapter();
+        mScaleGestureDetector = new ScaleGestureDetector(context, adapter);
+        mGestureDetector = new GestureDetector(context, adapter);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        mDelegate.onDetached();
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mDelegate.setViewport(w, h);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        List<ImageDrawable> drawables = mDelegate.obtainImageDrawables();
+        for (ImageDrawable drawable : drawables) {
+            if (drawable.mBitmap.isRecycled()) continue;
+            Orientation.draw(canvas, drawable.mBitmap, drawable.mSrc, drawable.mDst,
+                    drawable.mOrientation, mMatrix, mPaint);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        return mGestureDetector.onTouchEvent(event) | mScaleGestureDetector.onTouchEvent(event);
+    }
+
+    @Override
+    public void computeScroll() {
+        if (mScroller.computeScrollOffset()) {
+            mDelegate.scrollTo(mScroller.getCurrX(), mScroller.getCurrY());
+            postInvalidate();
+        }
+    }
+
+    @Override
+    protected int computeHorizontalScrollOffset() {
+        return Math.round(mDelegate.getOffsetX());
+    }
+
+    @Override
+    protected int computeHorizontalScrollRange() {
+        return mDelegate.getContentWidth();
+    }
+
+    @Override
+    protected int computeVerticalScrollOffset() {
+        return Math.round(mDelegate.getOffsetY());
+    }
+
+    @Override
+    protected int computeVerticalScrollRange() {
+        return mDelegate.getContentHeight();
+    }
+
+    @Override
+    public void onRequestInvalidate() {
+        postInvalidate();
+    }
+
+    public void setImages(List<String> paths) {
+        List<IntensifyImageDecoder> decoders = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            decoders.add(new IntensifyImagePathDecoder(path));
+        }
+        setImageDecoders(decoders);
+    }
+
+    public void setImageDecoders(List<? extends IntensifyImageDecoder> decoders) {
+        mScroller.forceFinished(true);
+        mDelegate.setImages(decoders);
+    }
+
+    public int getCount() {
+        return mDelegate.getCount();
+    }
+
+    public void setColumns(int columns) {
+        mDelegate.setColumns(columns);
+    }
+
+    public int getColumns() {
+        return mDelegate.getColumns();
+    }
+
+    /**
+     * @param spacing 图片之间的间距，单位像素
+     */
+    public void setSpacing(int spacing) {
+        mDelegate.setSpacing(spacing);
+    }
+
+    public int getSpacing() {
+        return mDelegate.getSpacing();
+    }
+
+    /**
+     * @param thumbnailSize 缩略图短边的最小值，0时使用格子的大小
+     */
+    public void setThumbnailSize(int thumbnailSize) {
+        mDelegate.setThumbnailSize(thumbnailSize);
+    }
+
+    public int getThumbnailSize() {
+        return mDelegate.getThumbnailSize();
+    }
+
+    /**
+     * @param cacheSize 所有缩略图和块共用的内存上限，单位字节
+     */
+    public void setCacheSize(int cacheSize) {
+        mDelegate.setCacheSize(cacheSize);
+    }
+
+    public int getCacheSize() {
+        return mDelegate.getCacheSize();
+    }
+
+    public void setMaximumScale(float scale) {
+        mDelegate.setMaximumScale(scale);
+    }
+
+    public float getMaximumScale() {
+        return mDelegate.getMaximumScale();
+    }
+
+    public float getScale() {
+        return mDelegate.getScale();
+    }
+
+    /**
+     * 设置图片信息的索引，有记录的图片不等解码就能按比例布局
+     *
+     * @param metadataIndex 索引，为null时不使用
+     */
+    public void setMetadataIndex(IntensifyMetadataIndex metadataIndex) {
+        mDelegate.setMetadataIndex(metadataIndex);
+    }
+
+    /**
+     * 放大到图片占满视图宽度
+     *
+     * @param index 图片的位置
+     */
+    public void focus(int index) {
+        mScroller.forceFinished(true);
+        mDelegate.focus(index);
+        postInvalidate();
+    }
+
+    public void setOnItemClickListener(OnItemClickListener listener) {
+        mOnItemClickListener = listener;
+    }
+
+    public interface OnItemClickListener {
+        void onItemClick(int index);
+    }
+
+    private class GestureAdapter extends GestureDetector.SimpleOnGestureListener
+            implements ScaleGestureDetector.OnScaleGestureListener {
+
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            mDelegate.scale(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+            postInvalidate();
+            return true;
+        }
+
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            return true;
+        }
+
+        @Override
+        public void onScaleEnd(ScaleGestureDetector detector) {
+
+        }
+
+        @Override
+        public boolean onDown(MotionEvent e) {
+            if (!mScroller.isFinished()) {
+                mScroller.abortAnimation();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            mDelegate.scrollTo(mDelegate.getOffsetX() + distanceX, mDelegate.getOffsetY() + distanceY);
+            getParent().requestDisallowInterceptTouchEvent(true);
+            awakenScrollBars();
+            postInvalidate();
+            return true;
+        }
+
+        @Override
+        public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+            mScroller.fling(Math.round(mDelegate.getOffsetX()), Math.round(mDelegate.getOffsetY()),
+                    Math.round(-velocityX), Math.round(-velocityY),
+                    0, Math.max(mDelegate.getContentWidth() - getWidth(), 0),
+                    0, Math.max(mDelegate.getContentHeight() - getHeight(), 0));
+            postInvalidate();
+            return true;
+        }
+
+        @Override
+        public boolean onDoubleTap(MotionEvent e) {
+            int index = mDelegate.indexAt(e.getX(), e.getY());
+            if (index < 0) return false;
+            if (mDelegate.getScale() > 1f) {
+                mDelegate.scale(1f / mDelegate.getScale(), e.getX(), e.getY());
+                postInvalidate();
+            } else focus(index);
+            return true;
+        }
+
+        @Override
+        public boolean onSingleTapConfirmed(MotionEvent e) {
+            if (mOnItemClickListener == null) return false;
+            int index = mDelegate.indexAt(e.getX(), e.getY());
+            if (index < 0) return false;
+            mOnItemClickListener.onItemClick(index);
+            return true;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package me.kareluo.intensify.image;
 
+import android.graphics.Rect;
+
 import java.io.File;
 import java.io.InputStream;
 
@@ -73,6 +75,31 @@ public interface IntensifyImage {
         final int nativeInt;
     }
 
+    enum CachePolicy {
+
+        // evict the least recently used block.
+        LRU(0),
+
+        // evict the block farthest from the viewport.
+        VIEWPORT(1),
+
+        // keep the blocks accessed most frequently, resist to long scans.
+        FREQUENCY(2);
+
+        CachePolicy(int ni) {
+            nativeInt = ni;
+        }
+
+        static CachePolicy valueOf(int value) {
+            if (value < 0 || value >= values().length) {
+                return LRU;
+            }
+            return values()[value];
+        }
+
+        final int nativeInt;
+    }
+
     interface OnSingleTapListener {
         void onSingleTap(boolean inside);
     }
@@ -88,4 +115,11 @@ public interface IntensifyImage {
     interface OnScaleChangeListener {
         void onScaleChange(float scale);
     }
+
+    interface OnViewportChangeListener {
+        /**
+         * @param region 可见区域在原图中的位置
+         */
+        void onViewportChange(Rect region);
+    }
 }
@@ -2,33 +2,271 @@ package me.kareluo.intensify.image;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.BitmapRegionDecoder;
 import android.graphics.Point;
 import android.graphics.Rect;
 
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static me.kareluo.intensify.image.IntensifyImage.CachePolicy;
+
 /**
  * Created by felix on 16/5/18.
+ * Blocks of all levels and the base bitmap share one budget in bytes.
  */
 class IntensifyImageCache extends IntensifyCache<Integer, IntensifyImageCache.ImageCache, Void> {
 
-    private int mSubMaxSize;
+    private volatile int mMaxSize;
+    private final Map<Bitmap, Integer> mBaseSizes = new IdentityHashMap<>();
     private Rect mOriginalRect;
-    private BitmapRegionDecoder mRegionDecoder;
+    private IntensifyRegionDecoder mRegionDecoder;
 
     private int BLOCK_SIZE = 300;
 
-    public IntensifyImageCache(
-            int maxSize, int subMaxSize, int blockSize, BitmapRegionDecoder bitmapRegionDecoder) {
-        super(maxSize);
+    private static final float DECODE_TIME_WEIGHT = 0.2f;
+
+    /**
+     * Entries of the outer cache, one per sample size level; more than any image needs.
+     */
+    private static final int MAX_LEVELS = 32;
+
+    private volatile boolean mCancelled = false;
+
+    private final Set<BitmapFactory.Options> mDecoding = new HashSet<>();
+
+    private volatile float mDecodeTime;
+
+    private volatile Rect mViewport;
+
+    private volatile int mViewportLevel = 1;
+
+    private CachePolicy mCachePolicy = CachePolicy.LRU;
+
+    private int mStripLength = 0;
+
+    private boolean mStripVertical = true;
+
+    /**
+     * @param maxSize       bytes of the base bitmap and all blocks together.
+     * @param blockSize     size of the block in original image pixels at level 1.
+     * @param regionDecoder decoder of the blocks.
+     */
+    public IntensifyImageCache(int maxSize, int blockSize, IntensifyRegionDecoder regionDecoder) {
+        super(MAX_LEVELS);
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
         BLOCK_SIZE = blockSize;
-        mSubMaxSize = subMaxSize;
-        mRegionDecoder = bitmapRegionDecoder;
+        mMaxSize = maxSize;
+        mRegionDecoder = regionDecoder;
         if (mRegionDecoder == null) {
-            throw new IllegalArgumentException("BitmapRegionDecoder is null.");
+            throw new IllegalArgumentException("RegionDecoder is null.");
         }
         mOriginalRect = new Rect(0, 0, mRegionDecoder.getWidth(), mRegionDecoder.getHeight());
     }
 
+    /**
+     * Set the visible image area and the sample size it is drawn with, used by
+     * {@link CachePolicy#VIEWPORT} to keep the nearest blocks.
+     *
+     * @param viewport visible area in original image coordinates.
+     * @param level    current sample size.
+     */
+    public void setViewport(Rect viewport, int level) {
+        mViewport = viewport;
+        mViewportLevel = level;
+    }
+
+    /**
+     * Drop the levels other than the current one, and the blocks of the current
+     * level more than {@code margin} blocks away from the visible area set by
+     * {@link #setViewport}. The next finer level keeps the blocks of the central
+     * half of the visible area, which the prefetch would otherwise fetch again.
+     *
+     * @param margin number of blocks kept around the visible area.
+     */
+    public void trimToViewport(int margin) {
+        Rect viewport = mViewport;
+        int current = mViewportLevel;
+        int finer = current >> 1;
+        for (Integer level : snapshot().keySet()) {
+            if (level == current) continue;
+            ImageCache imageCache = justGet(level);
+            if (level == finer && viewport != null && imageCache != null) {
+                Rect center = new Rect(viewport);
+                center.inset(viewport.width() / 4, viewport.height() / 4);
+                imageCache.trimOutside(center);
+            } else {
+                remove(level);
+            }
+        }
+
+        ImageCache imageCache = justGet(current);
+        if (imageCache == null) return;
+        if (viewport == null) {
+            imageCache.evictAll();
+            return;
+        }
+        int size = BLOCK_SIZE * current;
+        viewport = new Rect(viewport);
+        viewport.inset(-margin * size, -margin * size);
+        imageCache.trimOutside(viewport);
+    }
+
+    /**
+     * Decode strips spanning the whole width (or height) of a long image instead
+     * of blocks, for the levels at which that side is at most {@code maxLength}
+     * pixels. Levels already cached are dropped.
+     *
+     * @param vertical  true for full-width strips stacked vertically.
+     * @param maxLength longest strip in decoded pixels, 0 to disable.
+     */
+    public void setStrips(boolean vertical, int maxLength) {
+        if (mStripVertical == vertical && mStripLength == maxLength) return;
+        mStripVertical = vertical;
+        mStripLength = maxLength;
+        evictAll();
+    }
+
+    public boolean isStripVertical() {
+        return mStripVertical;
+    }
+
+    /**
+     * Set the budget of the base bitmap and all blocks together.
+     *
+     * @param maxSize the budget in bytes.
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        for (ImageCache imageCache : snapshot().values()) {
+            imageCache.resize(maxSize);
+        }
+        trimToMaxSize();
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Count a base bitmap in the budget. Every image sharing these blocks has
+     * its own base, each one is counted once under its own bitmap.
+     *
+     * @param base     the base bitmap.
+     * @param baseSize bytes of the base bitmap and its mipmaps.
+     */
+    public void setBaseSize(Bitmap base, int baseSize) {
+        synchronized (mBaseSizes) {
+            mBaseSizes.put(base, baseSize);
+        }
+        trimToMaxSize();
+    }
+
+    /**
+     * Stop counting a base bitmap, called before it is recycled or handed over.
+     *
+     * @param base the base bitmap.
+     */
+    public void removeBase(Bitmap base) {
+        synchronized (mBaseSizes) {
+            mBaseSizes.remove(base);
+        }
+    }
+
+    /**
+     * @return bytes of the base bitmaps and all blocks.
+     */
+    public int totalSize() {
+        int total = 0;
+        synchronized (mBaseSizes) {
+            for (int baseSize : mBaseSizes.values()) {
+                total += baseSize;
+            }
+        }
+        for (ImageCache imageCache : snapshot().values()) {
+            total += imageCache.size();
+        }
+        return total;
+    }
+
+    /**
+     * Evict blocks until the total size fits in the budget. Levels farthest from
+     * the current one give their blocks first, the current level is the last.
+     */
+    public void trimToMaxSize() {
+        while (totalSize() > mMaxSize) {
+            ImageCache victim = null;
+            int maxDistance = -1;
+            int current = Integer.numberOfTrailingZeros(mViewportLevel);
+            for (Map.Entry<Integer, ImageCache> entry : snapshot().entrySet()) {
+                if (entry.getValue().size() <= 0) continue;
+                int distance = Math.abs(Integer.numberOfTrailingZeros(entry.getKey()) - current);
+                if (distance > maxDistance || distance == maxDistance
+                        && entry.getKey() < victim.level) {
+                    maxDistance = distance;
+                    victim = entry.getValue();
+                }
+            }
+            if (victim == null || !victim.evict()) break;
+        }
+    }
+
+    /**
+     * @return the level of the blocks drawn.
+     */
+    public int getViewportLevel() {
+        return mViewportLevel;
+    }
+
+    private void onDecoded(float millis) {
+        float decodeTime = mDecodeTime;
+        mDecodeTime = decodeTime > 0 ? decodeTime * (1 - DECODE_TIME_WEIGHT)
+                + millis * DECODE_TIME_WEIGHT : millis;
+    }
+
+    /**
+     * @return moving average of the milliseconds spent decoding one block, 0 before the first.
+     */
+    public float getDecodeTime() {
+        return mDecodeTime;
+    }
+
+    public void setCachePolicy(CachePolicy policy) {
+        mCachePolicy = Utils.requireNonNull(policy);
+        for (ImageCache imageCache : snapshot().values()) {
+            imageCache.applyCachePolicy();
+        }
+    }
+
+    /**
+     * Interrupt every region being decoded, on any thread, and reject all following decodes.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (mDecoding) {
+            for (BitmapFactory.Options options : mDecoding) {
+                options.requestCancelDecode();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Accept decodes again after {@link #cancel()}, used when a released image is shown again.
+     */
+    public void resume() {
+        mCancelled = false;
+    }
+
     @Override
     protected void entryRemoved(boolean evicted, Integer key, ImageCache oldValue, ImageCache newValue) {
         if (oldValue != null) oldValue.evictAll();
@@ -36,13 +274,71 @@ class IntensifyImageCache extends IntensifyCache<Integer, IntensifyImageCache.Im
 
     @Override
     protected ImageCache create(Integer key) {
-        return new ImageCache(mSubMaxSize, key);
+        ImageCache imageCache = new ImageCache(mMaxSize, key);
+        imageCache.applyCachePolicy();
+        return imageCache;
     }
 
     public class ImageCache extends IntensifyCache<Point, Bitmap, Integer> {
 
+        private final boolean strip;
+
         public ImageCache(int maxSize, Integer level) {
             super(maxSize, level);
+            int length = mStripVertical ? mOriginalRect.width() : mOriginalRect.height();
+            strip = mStripLength > 0 && length / level <= mStripLength;
+        }
+
+        /**
+         * @return true if this level holds full-width (or full-height) strips.
+         */
+        public boolean isStrip() {
+            return strip;
+        }
+
+        /**
+         * @return the key of the block or strip covering the block (x, y).
+         */
+        public Point keyOf(int x, int y) {
+            if (!strip) return new Point(x, y);
+            return mStripVertical ? new Point(0, y) : new Point(x, 0);
+        }
+
+        /**
+         * @return the area of the key in original image coordinates.
+         */
+        public Rect keyRect(Point key) {
+            int size = BLOCK_SIZE * level;
+            if (!strip) return blockRect(key.x, key.y, size);
+            return mStripVertical ? new Rect(0, key.y * size, mOriginalRect.right, (key.y + 1) * size)
+                    : new Rect(key.x * size, 0, (key.x + 1) * size, mOriginalRect.bottom);
+        }
+
+        /**
+         * Remove the blocks which do not intersect the area.
+         *
+         * @param area area in original image coordinates.
+         */
+        public void trimOutside(Rect area) {
+            for (Point key : snapshot().keySet()) {
+                if (distance(area, keyRect(key)) > 0) {
+                    remove(key);
+                }
+            }
+        }
+
+        void applyCachePolicy() {
+            switch (mCachePolicy) {
+                case VIEWPORT:
+                    setEvictionPolicy(new ViewportDistancePolicy(this));
+                    break;
+                case FREQUENCY:
+                    setEvictionPolicy(new FrequencyPolicy<Point>());
+                    break;
+                default:
+                    setEvictionPolicy(null);
+                    break;
+            }
         }
 
         @Override
@@ -67,13 +363,33 @@ class IntensifyImageCache extends IntensifyCache<Integer, IntensifyImageCache.Im
             if (oldValue != null) oldValue.recycle();
         }
 
+        @Override
+        public void trimToSize(int maxSize) {
+            super.trimToSize(maxSize);
+            trimToMaxSize();
+        }
+
         @Override
         protected Bitmap create(Point key) {
+            if (mCancelled) return null;
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inSampleSize = level;
-            Rect rect = blockRect(key.x, key.y, BLOCK_SIZE * level);
+            Rect rect = keyRect(key);
             if (rect.intersect(mOriginalRect)) {
-                return mRegionDecoder.decodeRegion(rect, options);
+                synchronized (mDecoding) {
+                    // checked again under the lock, so cancel() either sees these options or we see the flag
+                    if (mCancelled) return null;
+                    mDecoding.add(options);
+                }
+                long start = System.nanoTime();
+                try {
+                    return mRegionDecoder.decodeRegion(rect, options);
+                } finally {
+                    synchronized (mDecoding) {
+                        mDecoding.remove(options);
+                    }
+                    onDecoded((System.nanoTime() - start) / 1e6f);
+                }
             }
             return null;
         }
@@ -84,6 +400,43 @@ class IntensifyImageCache extends IntensifyCache<Integer, IntensifyImageCache.Im
         }
     }
 
+    /**
+     * Evict the block farthest from the visible area, the least recently used
+     * one among equals.
+     */
+    private class ViewportDistancePolicy extends EvictionPolicy<Point> {
+        private final ImageCache mImageCache;
+
+        ViewportDistancePolicy(ImageCache imageCache) {
+            mImageCache = imageCache;
+        }
+
+        @Override
+        public Point selectVictim(Set<Point> keys) {
+            Rect viewport = mViewport;
+            if (viewport == null) return null;
+            long maxDistance = -1;
+            Point victim = null;
+            for (Point key : keys) {
+                long distance = distance(viewport, mImageCache.keyRect(key));
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    victim = key;
+                }
+            }
+            return victim;
+        }
+    }
+
+    /**
+     * Squared distance between the rect and the block, 0 if they intersect.
+     */
+    private static long distance(Rect rect, Rect block) {
+        long dx = Math.max(0, Math.max(rect.left - block.right, block.left - rect.right));
+        long dy = Math.max(0, Math.max(rect.top - block.bottom, block.top - rect.bottom));
+        return dx * dx + dy * dy;
+    }
+
     public static Rect blockRect(int x, int y, int size) {
         return new Rect(x * size, y * size, (x + 1) * size, (y + 1) * size);
     }
@@ -0,0 +1,21 @@
+package me.kareluo.intensify.image;
+
+import java.io.IOException;
+
+/**
+ * 图片源，打开按区域解码的解码器
+ */
+public interface IntensifyImageDecoder {
+
+    IntensifyRegionDecoder newRegionDecoder() throws IOException;
+
+    /**
+     * @return 图片源的标识，相同的图片返回相等的对象，无法标识时返回null
+     */
+    Object getKey();
+
+    /**
+     * @return EXIF方向，{@link android.media.ExifInterface}中的ORIENTATION_*，没有方向时返回ORIENTATION_NORMAL
+     */
+    int getOrientation();
+}
@@ -5,15 +5,17 @@ import android.animation.ValueAnimator;
 import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory.Options;
-import android.graphics.BitmapRegionDecoder;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.media.ExifInterface;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Pair;
 import android.view.animation.DecelerateInterpolator;
@@ -21,11 +23,16 @@ import android.view.animation.DecelerateInterpolator;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import me.kareluo.intensify.image.IntensifyImagePreloader.PreparedImage;
+
+import static me.kareluo.intensify.image.IntensifyImage.CachePolicy;
 import static me.kareluo.intensify.image.IntensifyImage.ScaleType;
 
 /**
@@ -40,7 +47,9 @@ class IntensifyImageDelegate {
 
     private IntensifyImageHandler mHandler;
 
-    private Image mImage;
+    private volatile Image mImage;
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
 
     private float mBaseScale = 1f;
 
@@ -58,6 +67,13 @@ class IntensifyImageDelegate {
 
     private RectF mImageArea = new RectF();
 
+    /**
+     * 图片位置的双精度记录，mImageArea由它换算得到
+     */
+    private final DoubleRect mArea = new DoubleRect();
+
+    private volatile Rect mViewport = new Rect();
+
     private Matrix mMatrix = new Matrix();
 
     private volatile State mState = State.NONE;
@@ -66,20 +82,91 @@ class IntensifyImageDelegate {
 
     private ScaleType mScaleType = ScaleType.FIT_CENTER;
 
-    private RectF mStartRect = new RectF(), mEndRect = new RectF();
+    private CachePolicy mCachePolicy = CachePolicy.LRU;
+
+    private DoubleRect mStartRect = new DoubleRect(), mEndRect = new DoubleRect();
 
     private volatile List<ImageDrawable> mDrawables = new ArrayList<>();
 
+    private volatile boolean mInMotion = false;
+
+    private volatile int mMotionSampleSize = 0;
+
+    private long mMotionIdleTime = MOTION_IDLE_TIME;
+
+    private volatile boolean mVisible = true;
+
+    private long mDecayTime = DECAY_TIME;
+
+    private volatile int mCacheSize;
+
+    private volatile int mPrefetchRing = PREFETCH_RING;
+
+    private final ArrayDeque<Pair<Integer, Point>> mPrefetches = new ArrayDeque<>();
+
+    private volatile boolean mPredictive = true;
+
+    private volatile boolean mLongImageMode = true;
+
+    private volatile IntensifyImagePreloader mPreloader;
+
+    private final RetainedImages mRetained;
+
+    private volatile int mRetainSize;
+
+    private volatile boolean mRetainTiles = false;
+
+    private volatile boolean mShareTiles = true;
+
+    private volatile float mRestoreScale, mRestoreX, mRestoreY;
+
+    private volatile String mRestoreKey;
+
+    private boolean mRestored = false;
+
+    private volatile IntensifyViewportStore mViewportStore;
+
+    private volatile IntensifyMetadataIndex mMetadataIndex;
+
+    private volatile IntensifyMetadataIndex.Metadata mMetadata;
+
+    private long mPanTime;
+
+    private volatile float mPanVelocityX, mPanVelocityY;
+
+    private volatile float mPanTravelX, mPanTravelY;
+
+    private Point mJumpTarget;
+
     private static final int[] SCALE_STEP = {1, 3};
 
     private static final int BLOCK_SIZE = 300;
+    private static final long MOTION_IDLE_TIME = 200;
+    private static final long DECAY_TIME = 5000;
+    private static final int PREFETCH_RING = 1;
+    private static final float PREFETCH_PERCENT = 0.75f;
+    private static final long PAN_WINDOW = 160;
+    private static final float PAN_TRAVEL_WEIGHT = 0.05f;
+    private static final int PREDICT_DEPTH = 4;
+    private static final int LONG_IMAGE_RATIO = 3;
+
+    /**
+     * 基础图显示得小于此比例时生成逐级减半的基础图
+     */
+    private static final float MIPMAP_RATIO = 0.5f;
+
+    private static final int MIPMAP_MIN_SIZE = 32;
     private static final int MSG_IMAGE_SRC = 0;
-    private static final int MSG_IMAGE_LOAD = 1;
-    private static final int MSG_IMAGE_INIT = 2;
-    private static final int MSG_IMAGE_SCALE = 3;
-    private static final int MSG_IMAGE_DRAW = 4;
-    private static final int MSG_IMAGE_RELEASE = 5;
-    private static final int MSG_QUIT = 6;
+    private static final int MSG_IMAGE_PREPARE = 1;
+    private static final int MSG_IMAGE_DRAW = 2;
+    private static final int MSG_IMAGE_RELEASE = 3;
+    private static final int MSG_QUIT = 4;
+    private static final int MSG_MOTION_IDLE = 5;
+    private static final int MSG_IMAGE_TRIM = 6;
+    private static final int MSG_IMAGE_DECAY = 7;
+    private static final int MSG_IMAGE_PREFETCH = 8;
+    private static final int MSG_IMAGE_REGION = 9;
+    private static final int MSG_IMAGE_MIPMAP = 10;
 
     private enum State {
         NONE, SRC, LOAD, INIT, FREE
@@ -87,10 +174,19 @@ class IntensifyImageDelegate {
 
     public IntensifyImageDelegate(DisplayMetrics metrics, Callback callback) {
         mDisplayMetrics = metrics;
+        mCacheSize = metrics.widthPixels * metrics.heightPixels << 4;
+        mRetainSize = mCacheSize >> 1;
+        mRetained = new RetainedImages(mRetainSize);
         mCallback = Utils.requireNonNull(callback);
         HandlerThread handlerThread = new HandlerThread(TAG);
         handlerThread.start();
         mHandler = new IntensifyImageHandler(handlerThread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new IdlePrefetcher());
+            }
+        });
         mZoomAnimator = ValueAnimator.ofFloat(0, 1f);
         mZoomAnimator.setDuration(IntensifyImage.DURATION_ZOOM);
         mZoomAnimator.setInterpolator(new DecelerateInterpolator());
@@ -102,34 +198,274 @@ class IntensifyImageDelegate {
     }
 
     public void onDetached() {
+        onDetached(false);
+    }
+
+    /**
+     * 结束工作线程，配置变化时暂存已解码的图片，由重建的视图取回
+     *
+     * @param changingConfigurations 是否因配置变化而销毁
+     */
+    public void onDetached(boolean changingConfigurations) {
+        // 在此登记，重建的视图取回时等待工作线程完成暂存
+        Image image = mImage;
+        Object parking = changingConfigurations && image != null ? image.mKey : null;
+        if (parking != null) {
+            IntensifyImageStore.getInstance().beginPark(parking);
+        }
+        cancel();
         mHandler.removeCallbacksAndMessages(null);
-        sendMessage(MSG_QUIT);
+        sendMessage(MSG_QUIT, changingConfigurations ? 1 : 0, 0, parking);
+    }
+
+    /**
+     * 恢复配置变化前的缩放值和位置，在同一张图片完成布局时生效
+     *
+     * @param key     图片源标识，见{@link #getSourceKey()}
+     * @param scale   缩放值
+     * @param centerX 可见区域中心在原图中的横坐标
+     * @param centerY 可见区域中心在原图中的纵坐标
+     */
+    public void restoreState(String key, float scale, float centerX, float centerY) {
+        mRestoreKey = key;
+        mRestoreX = centerX;
+        mRestoreY = centerY;
+        mRestoreScale = scale;
+    }
+
+    /**
+     * @return 当前图片源标识的字符串，可以保存在状态中，没有时返回null
+     */
+    public String getSourceKey() {
+        Image image = mImage;
+        return image != null ? sourceKey(image.mKey) : null;
+    }
+
+    private static String sourceKey(Object key) {
+        return key != null ? String.valueOf(key) : null;
+    }
+
+    /**
+     * 创建当前图片的导出器，与视图共用已缓存的块
+     *
+     * @return 导出器，图片尚未完成布局时返回null
+     */
+    public IntensifyImageExporter newExporter() {
+        Image image = mImage;
+        if (image == null || mState != State.FREE || image.mImageCache == null) return null;
+        IntensifyImageStore.Entry entry = image.exportEntry();
+        if (entry == null) return null;
+        return new IntensifyImageExporter(entry, image.mImageCache, image.mImageSampleSize, BLOCK_SIZE);
+    }
+
+    /**
+     * @param drawingRect 绘制区域
+     * @return 可见区域在原图中的位置，图片尚未完成布局时返回空区域
+     */
+    public Rect getVisibleRegion(Rect drawingRect) {
+        Image image = mImage;
+        if (image == null || mState != State.FREE) return new Rect();
+        DoubleRect area = new DoubleRect(mArea);
+        Rect region = area.toImage(drawingRect, area.width() / image.mImageWidth);
+        region.intersect(0, 0, image.mImageWidth, image.mImageHeight);
+        return region;
+    }
+
+    /**
+     * 把原图中的点移到绘制区域中心，不留出空白。不在手势中时先在工作线程中解码目标位置可见的块，
+     * 连续移动(如拖动导航)时不解码，由静止后的刷新处理。移动不计入滑动速度
+     *
+     * @param drawingRect 绘制区域
+     * @param x           原图中的横坐标
+     * @param y           原图中的纵坐标
+     * @return 移动后绘制区域的左上角，图片尚未完成布局时返回null
+     */
+    public Point moveTo(Rect drawingRect, float x, float y) {
+        Image image = mImage;
+        if (image == null || mState != State.FREE || Utils.isEmpty(drawingRect)) return null;
+        DoubleRect area = new DoubleRect(mArea);
+        double scale = area.width() / image.mImageWidth;
+        int width = drawingRect.width(), height = drawingRect.height();
+        Rect target = new Rect();
+        target.left = (int) Math.round(clamp(area.left + x * scale - width / 2.0, area.left, area.right, width));
+        target.top = (int) Math.round(clamp(area.top + y * scale - height / 2.0, area.top, area.bottom, height));
+        target.right = target.left + width;
+        target.bottom = target.top + height;
+
+        boolean gesture = mInMotion;
+        onMotion();
+        mHandler.removeMessages(MSG_IMAGE_REGION);
+        Rect region = area.toImage(target, scale);
+        if (!gesture && !region.isEmpty()) {
+            sendMessage(MSG_IMAGE_REGION, region);
+        }
+
+        // 跳转不是滑动，之前的速度和方向不再适用于新的位置
+        mPanVelocityX = mPanVelocityY = 0f;
+        mPanTravelX = mPanTravelY = 0f;
+        mJumpTarget = new Point(target.left, target.top);
+        return new Point(target.left, target.top);
+    }
+
+    /**
+     * @return 长度为length的区间起点，在[start, end]内，放不下时居中
+     */
+    private static double clamp(double value, double start, double end, int length) {
+        if (end - start < length) return (start + end - length) / 2;
+        return Math.max(start, Math.min(value, end - length));
+    }
+
+    /**
+     * @return 布局完成后可以保存状态
+     */
+    public boolean isReady() {
+        return mState == State.FREE;
     }
 
     public void load(String path) {
-        load(new ImagePathDecoder(path));
+        load(new IntensifyImagePathDecoder(path));
     }
 
     public void load(File file) {
-        load(new ImageFileDecoder(file));
+        load(new IntensifyImageFileDecoder(file));
     }
 
     public void load(InputStream inputStream) {
-        load(new ImageInputStreamDecoder(inputStream));
+        load(new IntensifyImageInputStreamDecoder(inputStream));
     }
 
-    public void load(ImageDecoder decoder) {
+    /**
+     * 更新可绘制区域，图片尚未完成布局时会立即推进加载流程
+     *
+     * @param drawingRect 绘制区域
+     */
+    public void setViewport(Rect drawingRect) {
+        Rect viewport = mViewport;
+        Point jump = mJumpTarget;
+        mJumpTarget = null;
+        if (jump != null && jump.equals(drawingRect.left, drawingRect.top)) {
+            mPanTime = SystemClock.uptimeMillis();
+        } else if (viewport.width() == drawingRect.width() && viewport.height() == drawingRect.height()) {
+            onPan(drawingRect.left - viewport.left, drawingRect.top - viewport.top);
+        }
+        mViewport = new Rect(drawingRect);
+        if (mState == State.LOAD || mState == State.INIT) {
+            requestPrepare();
+        }
+    }
+
+    public void load(IntensifyImageDecoder decoder) {
+        int generation = cancel();
         mHandler.removeCallbacksAndMessages(null);
         sendMessage(MSG_IMAGE_RELEASE);
-        sendMessage(MSG_IMAGE_SRC, decoder);
+        sendMessage(MSG_IMAGE_SRC, generation, 0, decoder);
+    }
+
+    /**
+     * 记录滑动的速度和主要方向，用于预测接下来需要的块
+     *
+     * @param dx 水平方向的移动距离
+     * @param dy 垂直方向的移动距离
+     */
+    private void onPan(int dx, int dy) {
+        if (dx == 0 && dy == 0) return;
+        long now = SystemClock.uptimeMillis();
+        long dt = Math.max(now - mPanTime, 1);
+        mPanTime = now;
+
+        // 速度只参考最近一段时间，方向则在多次滑动中累积
+        float keep = dt >= PAN_WINDOW ? 0f : 1f - 1f * dt / PAN_WINDOW;
+        mPanVelocityX = mPanVelocityX * keep + (1 - keep) * dx / dt;
+        mPanVelocityY = mPanVelocityY * keep + (1 - keep) * dy / dt;
+        mPanTravelX = mPanTravelX * (1 - PAN_TRAVEL_WEIGHT) + dx * PAN_TRAVEL_WEIGHT;
+        mPanTravelY = mPanTravelY * (1 - PAN_TRAVEL_WEIGHT) + dy * PAN_TRAVEL_WEIGHT;
+    }
+
+    /**
+     * 作废当前加载，正在进行的解码会被中断，已排队的块解码会被跳过
+     *
+     * @return 新的加载代数
+     */
+    private int cancel() {
+        int generation = mGeneration.incrementAndGet();
+        Image image = mImage;
+        if (image != null) {
+            image.cancel();
+        }
+        return generation;
     }
 
     //@WorkerThread
-    private void prepare(ImageDecoder decoder) {
-        mImage = new Image(decoder);
-        mImageArea.setEmpty();
+    private boolean prepare(IntensifyImageDecoder decoder, int generation) {
+        if (generation != mGeneration.get()) return false;
+        Object key = decoder.getKey();
+        prelayout(key);
+        Image retained = key != null ? mRetained.remove(key) : null;
+        IntensifyImageStore.Parked parked = key != null && retained == null
+                ? IntensifyImageStore.getInstance().unpark(key) : null;
+        if (retained != null) {
+            mImage = new Image(retained, generation);
+        } else if (parked != null) {
+            mImage = new Image(key, parked, generation);
+        } else {
+            IntensifyImagePreloader preloader = mPreloader;
+            PreparedImage prepared = preloader != null ? preloader.take(key) : null;
+            mImage = prepared != null ? new Image(key, prepared, generation) : new Image(decoder, generation);
+        }
+        if (mImage.isCancelled()) {
+            release();
+            return false;
+        }
         mState = State.SRC;
         load();
+        return true;
+    }
+
+    /**
+     * 有记录的图片信息时，在打开区域解码器之前按记录的尺寸完成布局
+     *
+     * @param key 图片源的标识
+     */
+    //@WorkerThread
+    private void prelayout(Object key) {
+        mArea.setEmpty();
+        mArea.toRectF(mImageArea);
+        IntensifyMetadataIndex index = mMetadataIndex;
+        IntensifyMetadataIndex.Metadata metadata = index != null ? index.get(key) : null;
+        mMetadata = metadata;
+        Rect viewport = mViewport;
+        if (metadata == null || Utils.isEmpty(viewport)) return;
+        setArea(layout(metadata.getWidth(), metadata.getHeight(), viewport));
+        requestAwakenScrollBars();
+    }
+
+    /**
+     * 在源和可绘制区域都已知时，连续完成尺寸读取、基础图解码和ScaleType布局
+     */
+    //@WorkerThread
+    private void advance() {
+        if (mImage == null || mImage.isCancelled()) return;
+
+        if (mState == State.SRC) {
+            load();
+        }
+
+        Rect viewport = mViewport;
+        if (Utils.isEmpty(viewport)) return;
+
+        if (mState == State.LOAD) {
+            initialize(viewport);
+        } else if (mState == State.INIT) {
+            initScaleType(viewport);
+        }
+
+        if (mRestored) {
+            mRestored = false;
+            // 回到上次的位置时，在同一次处理中解码可见的块
+            if (mState == State.FREE && mVisible) {
+                prepareDraw(viewport);
+            }
+        }
     }
 
     //@WorkerThread
@@ -143,26 +479,78 @@ class IntensifyImageDelegate {
     private void initialize(Rect drawingRect) {
         if (Utils.isEmpty(drawingRect)) return;
 
-        int sampleSize = getSampleSize(
-                Math.max(1f * mImage.mImageWidth / drawingRect.width(),
-                        1f * mImage.mImageHeight / drawingRect.height()));
-
-        mImage.mImageSampleSize = sampleSize;
-        Options options = new Options();
-        options.inSampleSize = sampleSize;
-        mImage.mImageCache = mImage.mImageRegion.decodeRegion(
-                new Rect(0, 0, mImage.mImageWidth, mImage.mImageHeight), options);
+        int sampleSize = getBaseSampleSize(mImage.mImageWidth, mImage.mImageHeight,
+                drawingRect.width(), drawingRect.height(), mCacheSize);
+
+        IntensifyViewportStore viewportStore = mViewportStore;
+        if (viewportStore != null && mRestoreScale <= 0 && mImage.mKey != null) {
+            float[] saved = viewportStore.load(mImage.mKey);
+            if (saved != null) {
+                restoreState(sourceKey(mImage.mKey), saved[0], saved[1], saved[2]);
+            }
+        }
+
+        int width = mImage.mImageWidth, height = mImage.mImageHeight;
+        if (mLongImageMode && !mImage.isShared()
+                && Math.max(width, height) >= LONG_IMAGE_RATIO * Math.min(width, height)) {
+            // 长图按整宽(高)的条带解码，条带不超过屏幕的长边，放大后仍按块解码
+            mImage.mImageCaches.setStrips(height > width,
+                    Math.max(drawingRect.width(), drawingRect.height()));
+        }
+
+        Bitmap bitmap = mImage.mImageCache;
+        // 已有的基础图与需要的相同，或者更精细且不超过一半的缓存，例如旋转前解码的
+        boolean reuse = bitmap != null && (mImage.mImageSampleSize == sampleSize
+                || mImage.mImageSampleSize < sampleSize
+                && bitmap.getRowBytes() * bitmap.getHeight() <= mCacheSize >> 1);
+        String mimeType = null;
+        if (!reuse) {
+            mImage.recycleMipmaps();
+            mImage.setBase(null);
+            if (bitmap != null) bitmap.recycle();
+            Options options = new Options();
+            options.inSampleSize = sampleSize;
+            bitmap = null;
+            if (mImage.beginDecode(options)) {
+                bitmap = mImage.mImageRegion.decodeRegion(
+                        new Rect(0, 0, mImage.mImageWidth, mImage.mImageHeight), options);
+                mImage.endDecode();
+            }
+            mImage.mImageSampleSize = sampleSize;
+            mimeType = options.outMimeType;
+        }
+        mImage.mDrawSampleSize = mImage.mImageSampleSize;
+        if (mImage.isCancelled()) {
+            mImage.setBase(null);
+            if (bitmap != null) bitmap.recycle();
+            return;
+        }
+        mImage.setBase(bitmap);
+        if (bitmap != null) {
+            IntensifyMetadataIndex index = mMetadataIndex;
+            if (index != null && (mimeType != null || mMetadata == null)) {
+                index.put(mImage.mKey, width, height, mimeType, bitmap);
+            }
+        }
         mState = State.INIT;
         initScaleType(drawingRect);
     }
 
+    /**
+     * 按ScaleType计算图片在绘制区域中的位置，同时更新基础缩放值
+     *
+     * @param width       图片宽度
+     * @param height      图片高度
+     * @param drawingRect 绘制区域
+     * @return 图片区域
+     */
     //@WorkerThread
-    private void initScaleType(Rect drawingRect) {
-        RectF imageArea = new RectF(0, 0, mImage.mImageWidth, mImage.mImageHeight);
+    private RectF layout(int width, int height, Rect drawingRect) {
+        RectF imageArea = new RectF(0, 0, width, height);
 
         // 是否为垂直型图片
-        mIsVertical = Double.compare(mImage.mImageHeight * drawingRect.width(),
-                mImage.mImageWidth * drawingRect.height()) > 0;
+        mIsVertical = Double.compare(height * drawingRect.width(),
+                width * drawingRect.height()) > 0;
 
         switch (mScaleType) {
             case NONE:
@@ -174,8 +562,8 @@ class IntensifyImageDelegate {
                 break;
 
             case FIT_CENTER:
-                mBaseScale = mIsVertical ? (1f * drawingRect.height() / mImage.mImageHeight)
-                        : (1f * drawingRect.width() / mImage.mImageWidth);
+                mBaseScale = mIsVertical ? (1f * drawingRect.height() / height)
+                        : (1f * drawingRect.width() / width);
                 mBaseScale = Utils.range(mBaseScale, mMinimumScale, mMaximumScale);
                 if (mNeedReset) mTempScale = mBaseScale;
                 mMatrix.setScale(mTempScale, mTempScale);
@@ -184,7 +572,7 @@ class IntensifyImageDelegate {
                 break;
 
             case FIT_AUTO:
-                mBaseScale = 1f * drawingRect.width() / mImage.mImageWidth;
+                mBaseScale = 1f * drawingRect.width() / width;
                 mBaseScale = Utils.range(mBaseScale, mMinimumScale, mMaximumScale);
                 if (mNeedReset) mTempScale = mBaseScale;
                 mMatrix.setScale(mTempScale, mTempScale);
@@ -197,113 +585,632 @@ class IntensifyImageDelegate {
                 }
                 break;
 
-            case CENTER:
-                mBaseScale = mIsVertical ? (1f * drawingRect.width() / mImage.mImageWidth)
-                        : (1f * drawingRect.height() / mImage.mImageHeight);
+            case CENTER:
+                mBaseScale = mIsVertical ? (1f * drawingRect.width() / width)
+                        : (1f * drawingRect.height() / height);
+
+                mBaseScale = Utils.range(mBaseScale, mMinimumScale, mMaximumScale);
+                if (mNeedReset) mTempScale = mBaseScale;
+                mMatrix.setScale(mTempScale, mTempScale);
+                mMatrix.mapRect(imageArea);
+                Utils.center(imageArea, drawingRect);
+                break;
+
+            case CENTER_INSIDE:
+                mBaseScale = Math.min(mIsVertical ? (1f * drawingRect.height() / height)
+                        : (1f * drawingRect.width() / width), 1f);
+                mBaseScale = Utils.range(mBaseScale, mMinimumScale, mMaximumScale);
+                if (mNeedReset) mTempScale = mBaseScale;
+                mMatrix.setScale(mTempScale, mTempScale);
+                mMatrix.mapRect(imageArea);
+                Utils.center(imageArea, drawingRect);
+                break;
+        }
+        return imageArea;
+    }
+
+    //@WorkerThread
+    private void initScaleType(Rect drawingRect) {
+        RectF imageArea = layout(mImage.mImageWidth, mImage.mImageHeight, drawingRect);
+
+        float restoreScale = mRestoreScale;
+        if (restoreScale > 0) {
+            mRestoreScale = 0;
+            String key = sourceKey(mImage.mKey);
+            if (key != null && key.equals(mRestoreKey)) {
+                // 恢复之前的缩放值，并让原来可见区域的中心保持在中心
+                float scale = Utils.range(restoreScale, mMinimumScale, mMaximumScale);
+                imageArea.set(0, 0, mImage.mImageWidth * scale, mImage.mImageHeight * scale);
+                imageArea.offsetTo(drawingRect.centerX() - mRestoreX * scale,
+                        drawingRect.centerY() - mRestoreY * scale);
+                Utils.home(imageArea, drawingRect);
+                mRestored = true;
+            }
+        }
+
+        Logger.d(TAG, "DrawingRect=" + drawingRect + "/ImageArea=" + imageArea);
+        if (!mAnimateScaleType || mImageArea.isEmpty() || mImageArea.equals(imageArea)) {
+            setArea(imageArea);
+        } else {
+            zoomTo(imageArea);
+        }
+        mNeedReset = true;
+        mState = State.FREE;
+    }
+
+    //@WorkerThread
+    private void prepareDraw(Rect rect) {
+        DoubleRect area = new DoubleRect(mArea);
+        double exactScale = area.width() / mImage.mImageWidth;
+        float curScale = (float) exactScale;
+        int sampleSize = getSampleSize((float) (1 / exactScale));
+
+        if (curScale * mImage.mImageSampleSize < MIPMAP_RATIO && mImage.mMipmaps == null) {
+            mImage.buildMipmaps();
+        }
+
+        // 手势进行中沿用冻结的级别，并且只使用已缓存的块
+        boolean motion = mInMotion;
+        if (motion && mMotionSampleSize > 0) {
+            sampleSize = mMotionSampleSize;
+        }
+        Pair<RectF, Rect> newState = Pair.create(new RectF(mImageArea), new Rect(rect));
+
+        // 可见区域在原图中的位置，块按原图坐标规划，只在生成绘制区域时换算为视图像素
+        Rect visible = area.toImage(rect, exactScale);
+        Rect imageRect = new Rect(0, 0, mImage.mImageWidth, mImage.mImageHeight);
+
+        if (mImage.mImageSampleSize > sampleSize) {
+            Rect blocks = Utils.blocks(new RectF(visible), BLOCK_SIZE * sampleSize);
+            mImage.mImageCaches.setViewport(visible, sampleSize);
+
+            List<ImageDrawable> drawables = new ArrayList<>();
+            int orientation = Orientation.of(mImage.mImageRegion);
+            IntensifyImageCache.ImageCache imageCache = mImage.mImageCaches.get(sampleSize);
+            if (imageCache != null && !visible.isEmpty()) {
+                // 条带覆盖整行(列)的块，手势进行中也解码可见的条带
+                boolean strip = imageCache.isStrip();
+                if (strip) {
+                    blocks = stripBlocks(imageCache, blocks);
+                }
+                for (int i = blocks.top; i <= blocks.bottom; i++) {
+                    for (int j = blocks.left; j <= blocks.right; j++) {
+                        if (mImage.isCancelled()) return;
+                        Point key = new Point(j, i);
+                        Bitmap bitmap = motion && !strip ? imageCache.justGet(key) : imageCache.createGet(key);
+                        if (bitmap == null) continue;
+                        Rect region = imageCache.keyRect(key);
+                        if (!region.intersect(imageRect)) continue;
+                        drawables.add(new ImageDrawable(bitmap, bitmapRect(bitmap),
+                                area.toView(region, exactScale), orientation));
+                    }
+                }
+
+                if (strip) {
+                    // 只保留可见区域前后各一屏内的条带
+                    Rect window = new Rect(visible);
+                    window.inset(-visible.width(), -visible.height());
+                    imageCache.trimOutside(window);
+                }
+            }
+
+            mDrawables.clear();
+            if (Utils.equals(newState, Pair.create(new RectF(mImageArea), new Rect(rect)))) {
+                mDrawables.addAll(drawables);
+            }
+        } else {
+            mDrawables.clear();
+            mImage.mImageCaches.setViewport(null, sampleSize);
+        }
+
+        if (!motion) {
+            mImage.mDrawSampleSize = sampleSize;
+        }
+        planPrefetch(sampleSize, visible, curScale, motion);
+
+        mImage.mCurrentState = Pair.create(new RectF(mImageArea), new Rect(rect));
+    }
+
+    /**
+     * 规划空闲时预取的块：滑动方向前方的块，当前级别可见区域外的若干圈，以及下一精细级别可见区域中心的块。
+     * 手势进行中不解码，也不规划，静止后的刷新会重新规划
+     *
+     * @param sampleSize 当前级别
+     * @param visible    可见区域在原图中的位置
+     * @param curScale   当前缩放值
+     * @param motion     手势是否进行中
+     */
+    //@WorkerThread
+    private void planPrefetch(int sampleSize, Rect visible, float curScale, boolean motion) {
+        mPrefetches.clear();
+        if (motion || Utils.isEmpty(visible)) return;
+
+        IntensifyImageCache.ImageCache imageCache = mImage.mImageCaches.justGet(sampleSize);
+        if (imageCache != null && imageCache.isStrip()) {
+            planStrips(imageCache, sampleSize, visible);
+            return;
+        }
+
+        if (mPredictive && mImage.mImageSampleSize > sampleSize) {
+            planPredict(sampleSize, visible, curScale);
+        }
+
+        int ring = mPrefetchRing;
+        if (ring <= 0) return;
+
+        if (mImage.mImageSampleSize > sampleSize) {
+            int size = BLOCK_SIZE * sampleSize;
+            Rect blocks = new Rect(visible.left / size, visible.top / size,
+                    (visible.right - 1) / size, (visible.bottom - 1) / size);
+            int maxX = (mImage.mImageWidth - 1) / size, maxY = (mImage.mImageHeight - 1) / size;
+            for (int r = 1; r <= ring; r++) {
+                for (int i = Math.max(blocks.top - r, 0); i <= Math.min(blocks.bottom + r, maxY); i++) {
+                    for (int j = Math.max(blocks.left - r, 0); j <= Math.min(blocks.right + r, maxX); j++) {
+                        int distance = Math.max(Math.max(blocks.left - j, j - blocks.right),
+                                Math.max(blocks.top - i, i - blocks.bottom));
+                        if (distance == r) {
+                            mPrefetches.offer(Pair.create(sampleSize, new Point(j, i)));
+                        }
+                    }
+                }
+            }
+        }
+
+        int finer = sampleSize >> 1;
+        if (finer >= 1 && mImage.mImageSampleSize > finer) {
+            int size = BLOCK_SIZE * finer;
+            int left = visible.left + visible.width() / 4, top = visible.top + visible.height() / 4;
+            int right = visible.right - visible.width() / 4, bottom = visible.bottom - visible.height() / 4;
+            for (int i = top / size; i <= (bottom - 1) / size; i++) {
+                for (int j = left / size; j <= (right - 1) / size; j++) {
+                    mPrefetches.offer(Pair.create(finer, new Point(j, i)));
+                }
+            }
+        }
+    }
+
+    /**
+     * 预取可见区域前后各一屏内的条带，由近到远，距离相同时滑动方向前方的优先
+     */
+    //@WorkerThread
+    private void planStrips(IntensifyImageCache.ImageCache imageCache, int sampleSize, Rect visible) {
+        int size = BLOCK_SIZE * sampleSize;
+        Rect blocks = stripBlocks(imageCache, new Rect(visible.left / size, visible.top / size,
+                (visible.right - 1) / size, (visible.bottom - 1) / size));
+        Rect window = new Rect(visible);
+        window.inset(-visible.width(), -visible.height());
+        window.intersect(0, 0, mImage.mImageWidth, mImage.mImageHeight);
+        window = stripBlocks(imageCache, new Rect(window.left / size, window.top / size,
+                (window.right - 1) / size, (window.bottom - 1) / size));
+
+        float travel = mImage.mImageCaches.isStripVertical() ? mPanTravelY : mPanTravelX;
+        int depth = Math.max(Math.max(blocks.left - window.left, window.right - blocks.right),
+                Math.max(blocks.top - window.top, window.bottom - blocks.bottom));
+        for (int d = 1; d <= depth; d++) {
+            int ahead = travel < 0 ? -d : d;
+            offerStrip(imageCache, sampleSize, window, blocks, ahead);
+            offerStrip(imageCache, sampleSize, window, blocks, -ahead);
+        }
+    }
+
+    //@WorkerThread
+    private void offerStrip(IntensifyImageCache.ImageCache imageCache, int sampleSize,
+                            Rect window, Rect blocks, int offset) {
+        Point key = offset > 0 ? imageCache.keyOf(blocks.right + offset, blocks.bottom + offset)
+                : imageCache.keyOf(blocks.left + offset, blocks.top + offset);
+        if (key.x >= window.left && key.x <= window.right
+                && key.y >= window.top && key.y <= window.bottom) {
+            mPrefetches.offer(Pair.create(sampleSize, key));
+        }
+    }
+
+    /**
+     * 把块的范围折叠成条带的范围
+     */
+    private static Rect stripBlocks(IntensifyImageCache.ImageCache imageCache, Rect blocks) {
+        Point start = imageCache.keyOf(blocks.left, blocks.top);
+        Point end = imageCache.keyOf(blocks.right, blocks.bottom);
+        return new Rect(start.x, start.y, end.x, end.y);
+    }
+
+    /**
+     * 解码区域内当前级别的块，在绘制该区域前执行，绘制时即使在手势中也能直接使用
+     *
+     * @param region 原图中的区域
+     */
+    //@WorkerThread
+    private void decodeRegion(Rect region) {
+        Image image = mImage;
+        if (image == null || mState != State.FREE) return;
+        int sampleSize = mInMotion && mMotionSampleSize > 0 ? mMotionSampleSize
+                : getSampleSize((float) (image.mImageWidth / mArea.width()));
+        if (image.mImageSampleSize <= sampleSize) return;
+        IntensifyImageCache.ImageCache imageCache = image.mImageCaches.get(sampleSize);
+        if (imageCache == null) return;
+        Rect blocks = Utils.blocks(new RectF(region), BLOCK_SIZE * sampleSize);
+        if (imageCache.isStrip()) {
+            blocks = stripBlocks(imageCache, blocks);
+        }
+        for (int i = blocks.top; i <= blocks.bottom; i++) {
+            for (int j = blocks.left; j <= blocks.right; j++) {
+                if (image.isCancelled()) return;
+                imageCache.createGet(new Point(j, i));
+            }
+        }
+    }
+
+    /**
+     * 沿主要滑动方向预取可见区域前方的若干行(列)块，深度由滑动速度和解码速度决定
+     */
+    //@WorkerThread
+    private void planPredict(int sampleSize, Rect visible, float curScale) {
+        int size = BLOCK_SIZE * sampleSize;
+        Rect blocks = new Rect(visible.left / size, visible.top / size,
+                (visible.right - 1) / size, (visible.bottom - 1) / size);
+        int maxX = (mImage.mImageWidth - 1) / size, maxY = (mImage.mImageHeight - 1) / size;
+
+        float travelX = mPanTravelX, travelY = mPanTravelY;
+        boolean vertical = Math.abs(travelY) > Math.abs(travelX);
+        float travel = vertical ? travelY : travelX;
+        // 主要方向不明显时不预测
+        if (Math.abs(travel) < 1f || Math.abs(travel) < 2 * Math.abs(vertical ? travelX : travelY)) {
+            return;
+        }
+
+        // 解码一行块的时间内视口移动的行数，即需要领先的深度
+        float speed = Math.abs(vertical ? mPanVelocityY : mPanVelocityX);
+        int count = vertical ? blocks.width() + 1 : blocks.height() + 1;
+        float rowTime = count * mImage.mImageCaches.getDecodeTime();
+        int depth = 1 + Utils.ceil(speed * rowTime / (size * curScale));
+        depth = Math.min(depth, PREDICT_DEPTH);
+
+        int step = travel > 0 ? 1 : -1;
+        for (int d = 1; d <= depth; d++) {
+            if (vertical) {
+                int i = step > 0 ? blocks.bottom + d : blocks.top - d;
+                if (i < 0 || i > maxY) break;
+                for (int j = Math.max(blocks.left, 0); j <= Math.min(blocks.right, maxX); j++) {
+                    mPrefetches.offer(Pair.create(sampleSize, new Point(j, i)));
+                }
+            } else {
+                int j = step > 0 ? blocks.right + d : blocks.left - d;
+                if (j < 0 || j > maxX) break;
+                for (int i = Math.max(blocks.top, 0); i <= Math.min(blocks.bottom, maxY); i++) {
+                    mPrefetches.offer(Pair.create(sampleSize, new Point(j, i)));
+                }
+            }
+        }
+    }
+
+    /**
+     * 不可见时回收全部块，只保留基础图
+     */
+    //@WorkerThread
+    private void trim() {
+        for (Image image : mRetained.snapshot().values()) {
+            if (!image.isShared()) image.mImageCaches.evictAll();
+        }
+        if (mImage == null) return;
+        mDrawables.clear();
+        mImage.mCurrentState = null;
+        // 其他视图仍在显示同一张图片时保留共享的块
+        if (!mImage.isShared()) mImage.mImageCaches.evictAll();
+    }
+
+    /**
+     * 空闲一段时间后只保留当前级别可见区域附近的块，以及预取的下一精细级别中心的块
+     */
+    //@WorkerThread
+    private void decay() {
+        if (mImage == null || mImage.isShared()) return;
+        mImage.mImageCaches.trimToViewport(mPrefetchRing);
+    }
+
+    //@WorkerThread
+    private void scheduleDecay() {
+        mHandler.removeMessages(MSG_IMAGE_DECAY);
+        if (mDecayTime > 0) {
+            mHandler.sendEmptyMessageDelayed(MSG_IMAGE_DECAY, mDecayTime);
+        }
+    }
+
+    //@WorkerThread
+    private void settle() {
+        mInMotion = false;
+        mMotionSampleSize = 0;
+        if (mImage != null) {
+            // 丢弃手势期间的绘制状态，使下一帧按当前级别重新解码一次
+            mImage.mCurrentState = null;
+            requestInvalidate();
+        }
+    }
+
+    //@WorkerThread
+    private void release() {
+        saveViewport();
+        mZoomAnimator.cancel();
+        mPrefetches.clear();
+        mInMotion = false;
+        mMotionSampleSize = 0;
+        if (mImage != null) {
+            if (!retain(mImage)) {
+                mImage.release();
+            }
+            mImage = null;
+        }
+        mState = State.NONE;
+    }
+
+    /**
+     * 把当前图片的缩放值和可见区域保存到{@link IntensifyViewportStore}
+     */
+    //@WorkerThread
+    private void saveViewport() {
+        IntensifyViewportStore viewportStore = mViewportStore;
+        Image image = mImage;
+        Rect viewport = mViewport;
+        if (viewportStore == null || image == null || image.mKey == null
+                || mState != State.FREE || Utils.isEmpty(viewport)) return;
+        DoubleRect area = new DoubleRect(mArea);
+        double scale = area.width() / image.mImageWidth;
+        viewportStore.save(image.mKey, (float) scale, (float) ((viewport.exactCenterX() - area.left) / scale),
+                (float) ((viewport.exactCenterY() - area.top) / scale));
+    }
+
+    /**
+     * 配置变化时暂存当前图片，重建的视图加载同一张图片时取回
+     */
+    //@WorkerThread
+    private void park() {
+        Image image = mImage;
+        if (image == null || image.mKey == null || image.mImageCache == null) return;
+        image.recycleMipmaps();
+        IntensifyImageStore.getInstance().park(image.mKey, new IntensifyImageStore.Parked(
+                image.mImageRegion, image.mImageCaches, image.handOver(),
+                image.mImageCache, image.mImageSampleSize));
+        mImage = null;
+        mDrawables.clear();
+    }
+
+    /**
+     * 保留已初始化的图片，再次加载相同的图片时不用重新打开和解码
+     *
+     * @param image 被替换的图片
+     * @return 是否被保留
+     */
+    //@WorkerThread
+    private boolean retain(Image image) {
+        int retainSize = mRetainSize;
+        if (retainSize <= 0) {
+            mRetained.evictAll();
+            return false;
+        }
+        if (image.mKey == null || image.mImageCache == null) return false;
+
+        image.mCurrentState = null;
+        if (!mRetainTiles && !image.isShared()) {
+            image.mImageCaches.evictAll();
+        }
+        image.mRetainedSize = image.mImageCaches.totalSize();
+        mRetained.resize(retainSize);
+        // 放不下的图片直接由调用者释放，不能先放入再被逐出回收
+        if (image.mRetainedSize > retainSize) return false;
+        mRetained.put(image.mKey, image);
+        return mRetained.justGet(image.mKey) == image;
+    }
+
+    /**
+     * 受限制于minimumScale和maximumScale
+     *
+     * @param scale 缩放值
+     */
+    public void setScale(float scale) {
+        if (scale < 0.0f) return;
+        mTempScale = scale;
+        mNeedReset = false;
+        if (mState.ordinal() > State.INIT.ordinal()) {
+            mState = State.INIT;
+            requestPrepare();
+        }
+    }
+
+    /**
+     * 标记手势或惯性滑动正在进行，冻结当前解码级别，直到静止超过{@link #getMotionIdleTime()}
+     */
+    public void onMotion() {
+        if (!mInMotion) {
+            Image image = mImage;
+            mMotionSampleSize = image != null ? image.mDrawSampleSize : 0;
+            mInMotion = true;
+        }
+        mHandler.removeMessages(MSG_MOTION_IDLE);
+        mHandler.sendEmptyMessageDelayed(MSG_MOTION_IDLE, mMotionIdleTime);
+    }
+
+    public boolean isInMotion() {
+        return mInMotion;
+    }
+
+    /**
+     * 更新可见状态，不可见时回收块缓存，重新可见时按需解码
+     *
+     * @param visible 是否可见
+     */
+    public void setVisible(boolean visible) {
+        if (mVisible == visible) return;
+        mVisible = visible;
+        if (visible) {
+            requestInvalidate();
+        } else {
+            mHandler.removeMessages(MSG_IMAGE_DRAW);
+            sendMessage(MSG_IMAGE_TRIM);
+        }
+    }
+
+    /**
+     * 设置空闲时在可见区域外预取的块的圈数
+     *
+     * @param ring 圈数，0表示不预取
+     */
+    public void setPrefetchRing(int ring) {
+        if (ring >= 0) {
+            mPrefetchRing = ring;
+        }
+    }
+
+    public int getPrefetchRing() {
+        return mPrefetchRing;
+    }
+
+    /**
+     * 设置是否沿滑动方向预取前方的块
+     *
+     * @param predictive 是否预测
+     */
+    public void setPredictivePrefetch(boolean predictive) {
+        mPredictive = predictive;
+    }
+
+    public boolean isPredictivePrefetch() {
+        return mPredictive;
+    }
+
+    /**
+     * 设置保留最近显示过的图片所用的内存，0表示不保留
+     *
+     * @param retainSize 字节数
+     */
+    public void setRetainSize(int retainSize) {
+        if (retainSize >= 0) {
+            mRetainSize = retainSize;
+        }
+    }
+
+    public int getRetainSize() {
+        return mRetainSize;
+    }
 
-                mBaseScale = Utils.range(mBaseScale, mMinimumScale, mMaximumScale);
-                if (mNeedReset) mTempScale = mBaseScale;
-                mMatrix.setScale(mTempScale, mTempScale);
-                mMatrix.mapRect(imageArea);
-                Utils.center(imageArea, drawingRect);
-                break;
+    /**
+     * 设置保留图片时是否连同已解码的块一起保留
+     *
+     * @param retainTiles 是否保留块
+     */
+    public void setRetainTiles(boolean retainTiles) {
+        mRetainTiles = retainTiles;
+    }
 
-            case CENTER_INSIDE:
-                mBaseScale = Math.min(mIsVertical ? (1f * drawingRect.height() / mImage.mImageHeight)
-                        : (1f * drawingRect.width() / mImage.mImageWidth), 1f);
-                mBaseScale = Utils.range(mBaseScale, mMinimumScale, mMaximumScale);
-                if (mNeedReset) mTempScale = mBaseScale;
-                mMatrix.setScale(mTempScale, mTempScale);
-                mMatrix.mapRect(imageArea);
-                Utils.center(imageArea, drawingRect);
-                break;
-        }
-        Logger.d(TAG, "DrawingRect=" + drawingRect + "/ImageArea=" + imageArea);
-        if (!mAnimateScaleType || mImageArea.isEmpty() || mImageArea.equals(imageArea)) {
-            mImageArea.set(imageArea);
-        } else {
-            zoomTo(imageArea);
-        }
-        mNeedReset = true;
-        mState = State.FREE;
+    public boolean isRetainTiles() {
+        return mRetainTiles;
     }
 
-    //@WorkerThread
-    private void prepareDraw(Rect rect) {
-        float curScale = getScale();
-        int sampleSize = getSampleSize(1f / curScale);
-        Pair<RectF, Rect> newState = Pair.create(new RectF(mImageArea), new Rect(rect));
+    /**
+     * 设置是否与显示同一张图片的其他视图共享区域解码器和块，下次加载图片时生效
+     *
+     * @param shareTiles 是否共享
+     */
+    public void setShareTiles(boolean shareTiles) {
+        mShareTiles = shareTiles;
+    }
 
-        if (mImage.mImageSampleSize > sampleSize) {
-            RectF drawingRect = new RectF(rect);
+    public boolean isShareTiles() {
+        return mShareTiles;
+    }
 
-            if (drawingRect.intersect(mImageArea)) {
-                drawingRect.offset(-mImageArea.left, -mImageArea.top);
-            }
+    /**
+     * 设置图片信息的索引，有记录时不等区域解码器打开就完成布局
+     *
+     * @param metadataIndex 索引，为null时不使用
+     */
+    public void setMetadataIndex(IntensifyMetadataIndex metadataIndex) {
+        mMetadataIndex = metadataIndex;
+    }
 
-            float blockSize = BLOCK_SIZE * curScale * sampleSize;
-            Rect blocks = Utils.blocks(drawingRect, blockSize);
+    /**
+     * @return 当前图片记录的信息，没有时返回null
+     */
+    public IntensifyMetadataIndex.Metadata getMetadata() {
+        return mMetadata;
+    }
 
-            List<ImageDrawable> drawables = new ArrayList<>();
-            int roundLeft = Math.round(mImageArea.left);
-            int roundTop = Math.round(mImageArea.top);
-            IntensifyImageCache.ImageCache imageCache = mImage.mImageCaches.get(sampleSize);
-            if (imageCache != null) {
-                for (int i = blocks.top; i <= blocks.bottom; i++) {
-                    for (int j = blocks.left; j <= blocks.right; j++) {
-                        Bitmap bitmap = imageCache.createGet(new Point(j, i));
-                        if (bitmap == null) continue;
-                        Rect src = bitmapRect(bitmap);
-                        Rect dst = Utils.blockRect(j, i, blockSize, roundLeft, roundTop);
-                        if (src.bottom * sampleSize != BLOCK_SIZE
-                                || src.right * sampleSize != BLOCK_SIZE) {
-
-                            dst.set(src.left + dst.left, src.top + dst.top,
-                                    Math.round(src.right * sampleSize * curScale) + dst.left,
-                                    Math.round(src.bottom * sampleSize * curScale) + dst.top);
-                        }
-                        drawables.add(new ImageDrawable(bitmap, src, dst));
-                    }
-                }
-            }
+    /**
+     * 设置保存每张图片最后位置的存储，加载图片时回到上次的缩放值和可见区域
+     *
+     * @param viewportStore 存储，为null时不保存也不恢复
+     */
+    public void setViewportStore(IntensifyViewportStore viewportStore) {
+        mViewportStore = viewportStore;
+    }
 
-            mDrawables.clear();
-            if (Utils.equals(newState, Pair.create(new RectF(mImageArea), new Rect(rect)))) {
-                mDrawables.addAll(drawables);
-            }
-        } else mDrawables.clear();
+    public IntensifyViewportStore getViewportStore() {
+        return mViewportStore;
+    }
 
-        mImage.mCurrentState = Pair.create(new RectF(mImageArea), new Rect(rect));
+    /**
+     * 设置预加载器，加载图片时优先使用其中已准备好的区域解码器和基础图
+     *
+     * @param preloader 预加载器，为null时不使用
+     */
+    public void setPreloader(IntensifyImagePreloader preloader) {
+        mPreloader = preloader;
     }
 
-    //@WorkerThread
-    private void release() {
-        mZoomAnimator.cancel();
-        if (mImage != null) {
-            mImage.release();
-            mImage = null;
+    public IntensifyImagePreloader getPreloader() {
+        return mPreloader;
+    }
+
+    /**
+     * 设置长图是否按整宽(高)的条带解码，下次加载图片时生效
+     *
+     * @param longImageMode 是否启用长图模式
+     */
+    public void setLongImageMode(boolean longImageMode) {
+        mLongImageMode = longImageMode;
+    }
+
+    public boolean isLongImageMode() {
+        return mLongImageMode;
+    }
+
+    /**
+     * 设置空闲多久后回收不在屏幕上的块
+     *
+     * @param decayTime 空闲时间，单位毫秒，0表示不回收
+     */
+    public void setDecayTime(long decayTime) {
+        if (decayTime >= 0) {
+            mDecayTime = decayTime;
         }
-        mState = State.NONE;
+    }
+
+    public long getDecayTime() {
+        return mDecayTime;
     }
 
     /**
-     * 受限制于minimumScale和maximumScale
+     * 设置手势静止多久后恢复高清解码
      *
-     * @param scale 缩放值
+     * @param idleTime 静止时间，单位毫秒
      */
-    public void setScale(float scale) {
-        if (scale < 0.0f) return;
-        mTempScale = scale;
-        mNeedReset = false;
-        if (mState.ordinal() > State.INIT.ordinal()) {
-            mState = State.INIT;
-            requestInvalidate();
-            requestAwakenScrollBars();
+    public void setMotionIdleTime(long idleTime) {
+        if (idleTime >= 0) {
+            mMotionIdleTime = idleTime;
         }
     }
 
+    public long getMotionIdleTime() {
+        return mMotionIdleTime;
+    }
+
     public float getScale() {
-        return 1f * mImageArea.width() / mImage.mImageWidth;
+        return (float) (mArea.width() / mImage.mImageWidth);
+    }
+
+    /**
+     * 更新图片的位置
+     */
+    private void setArea(RectF area) {
+        mArea.set(area);
+        mArea.toRectF(mImageArea);
     }
 
     public float getBaseScale() {
@@ -336,8 +1243,7 @@ class IntensifyImageDelegate {
             mMinimumScale = minimumScale;
             if (mState.ordinal() > State.INIT.ordinal()) {
                 mState = State.INIT;
-                requestInvalidate();
-                requestAwakenScrollBars();
+                requestPrepare();
             }
         }
     }
@@ -352,8 +1258,7 @@ class IntensifyImageDelegate {
             mMaximumScale = maximumScale;
             if (mState.ordinal() > State.INIT.ordinal()) {
                 mState = State.INIT;
-                requestInvalidate();
-                requestAwakenScrollBars();
+                requestPrepare();
             }
         }
     }
@@ -370,11 +1275,11 @@ class IntensifyImageDelegate {
      * 请求图片归位
      */
     public void zoomHoming(Rect drawingRect) {
-        if (Utils.contains(mImageArea, drawingRect)) return;
+        if (mArea.contains(drawingRect)) return;
         mZoomAnimator.cancel();
-        mStartRect.set(mImageArea);
-        mEndRect.set(mImageArea);
-        Utils.home(mEndRect, drawingRect);
+        mStartRect.set(mArea);
+        mEndRect.set(mArea);
+        mEndRect.home(drawingRect);
         mZoomAnimator.start();
     }
 
@@ -383,10 +1288,45 @@ class IntensifyImageDelegate {
         if (mState.ordinal() >= State.INIT.ordinal()) {
             mState = State.INIT;
             mImage.mCurrentState = null;
-            requestInvalidate();
+            requestPrepare();
+        }
+    }
+
+    /**
+     * 设置块缓存的淘汰策略
+     *
+     * @param cachePolicy 淘汰策略
+     */
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        mCachePolicy = Utils.requireNonNull(cachePolicy);
+        Image image = mImage;
+        if (image != null) {
+            image.mImageCaches.setCachePolicy(cachePolicy);
         }
     }
 
+    public CachePolicy getCachePolicy() {
+        return mCachePolicy;
+    }
+
+    /**
+     * 设置缓存大小，包括基础图和所有级别的块
+     *
+     * @param cacheSize 缓存大小，单位字节
+     */
+    public void setCacheSize(int cacheSize) {
+        if (cacheSize <= 0) return;
+        mCacheSize = cacheSize;
+        Image image = mImage;
+        if (image != null) {
+            image.mImageCaches.setMaxSize(cacheSize);
+        }
+    }
+
+    public int getCacheSize() {
+        return mCacheSize;
+    }
+
     /**
      * 设置ScaleType动画过渡
      *
@@ -406,7 +1346,10 @@ class IntensifyImageDelegate {
      * @return 图像原始宽度
      */
     public int getWidth() {
-        return mImage != null ? mImage.mImageWidth : 0;
+        Image image = mImage;
+        if (image != null && image.mImageWidth > 0) return image.mImageWidth;
+        IntensifyMetadataIndex.Metadata metadata = mMetadata;
+        return metadata != null ? metadata.getWidth() : 0;
     }
 
     /**
@@ -415,7 +1358,10 @@ class IntensifyImageDelegate {
      * @return 图像原始高度
      */
     public int getHeight() {
-        return mImage != null ? mImage.mImageHeight : 0;
+        Image image = mImage;
+        if (image != null && image.mImageHeight > 0) return image.mImageHeight;
+        IntensifyMetadataIndex.Metadata metadata = mMetadata;
+        return metadata != null ? metadata.getHeight() : 0;
     }
 
     /**
@@ -501,22 +1447,22 @@ class IntensifyImageDelegate {
         if (!Utils.inRange(preScale, mMinimumScale, mMaximumScale)) {
             scale = Utils.range(preScale, mMinimumScale, mMaximumScale) / curScale;
         }
-        mMatrix.setScale(scale, scale, focusX, focusY);
-        mMatrix.mapRect(mImageArea);
+        mArea.scale(scale, focusX, focusY);
+        mArea.toRectF(mImageArea);
         requestScaleChange();
     }
 
     public void zoomScale(Rect drawingRect, float scale, float focusX, float focusY) {
         if (mState.ordinal() < State.FREE.ordinal() || Utils.isEmpty(drawingRect)) return;
         mZoomAnimator.cancel();
-        mStartRect.set(mImageArea);
+        mStartRect.set(mArea);
 
-        mMatrix.setScale(scale, scale, focusX, focusY);
-        mMatrix.mapRect(mImageArea);
+        mArea.scale(scale, focusX, focusY);
+        mArea.toRectF(mImageArea);
 
-        mEndRect.set(mImageArea);
-        if (!Utils.contains(mImageArea, drawingRect)) {
-            Utils.home(mEndRect, drawingRect);
+        mEndRect.set(mArea);
+        if (!mArea.contains(drawingRect)) {
+            mEndRect.home(drawingRect);
         }
         Logger.d(TAG, "Start=" + mStartRect + "/End=" + mEndRect);
         mZoomAnimator.start();
@@ -524,11 +1470,16 @@ class IntensifyImageDelegate {
 
     public void zoomTo(RectF dst) {
         mZoomAnimator.cancel();
-        mStartRect.set(mImageArea);
+        mStartRect.set(mArea);
         mEndRect.set(dst);
         mZoomAnimator.start();
     }
 
+    private void requestPrepare() {
+        mHandler.removeMessages(MSG_IMAGE_PREPARE);
+        sendMessage(MSG_IMAGE_PREPARE);
+    }
+
     private void requestInvalidate() {
         mCallback.onRequestInvalidate();
     }
@@ -542,7 +1493,7 @@ class IntensifyImageDelegate {
     }
 
     public List<ImageDrawable> obtainImageDrawables(Rect drawingRect) {
-        if (Utils.isEmpty(drawingRect) || isNeedPrepare(drawingRect)) {
+        if (Utils.isEmpty(drawingRect) || isNeedPrepare()) {
             return Collections.emptyList();
         }
 
@@ -558,30 +1509,48 @@ class IntensifyImageDelegate {
 
     public ArrayList<ImageDrawable> obtainBaseDrawables() {
         ArrayList<ImageDrawable> drawables = new ArrayList<>();
-        drawables.add(new ImageDrawable(mImage.mImageCache,
-                bitmapRect(mImage.mImageCache), Utils.round(mImageArea)));
+        Bitmap base = mImage.getBase(getScale() * mImage.mImageSampleSize);
+        drawables.add(new ImageDrawable(base, bitmapRect(base),
+                mArea.round(), Orientation.of(mImage.mImageRegion)));
         return drawables;
     }
 
     /**
-     * 判断是否需要更新状态
+     * 整张图片居中缩放到frame内，使用已有的基础图或其缩小的一级，不另外解码
      *
-     * @param drawingRect 绘制区域
-     * @return true 需要准备
+     * @param frame 显示区域
+     * @return 图片尚未完成布局时返回null
      */
-    public boolean isNeedPrepare(Rect drawingRect) {
-        mHandler.removeCallbacksAndMessages(null);
+    public ImageDrawable obtainOverviewDrawable(Rect frame) {
+        Image image = mImage;
+        if (image == null || mState != State.FREE || Utils.isEmpty(frame)) return null;
+        Bitmap bitmap = image.mImageCache;
+        if (bitmap == null || bitmap.isRecycled()) return null;
+        float scale = Math.min(1f * frame.width() / image.mImageWidth, 1f * frame.height() / image.mImageHeight);
+        int width = Math.round(image.mImageWidth * scale), height = Math.round(image.mImageHeight * scale);
+        Rect dst = new Rect(0, 0, width, height);
+        dst.offset(frame.centerX() - width / 2, frame.centerY() - height / 2);
+
+        float ratio = scale * image.mImageSampleSize;
+        if (ratio < MIPMAP_RATIO && image.mMipmaps == null && !mHandler.hasMessages(MSG_IMAGE_MIPMAP)) {
+            sendMessage(MSG_IMAGE_MIPMAP);
+        }
+        Bitmap base = image.getBase(ratio);
+        return new ImageDrawable(base, bitmapRect(base), dst, Orientation.of(image.mImageRegion));
+    }
+
+    /**
+     * 判断图片是否还未准备好绘制，只读取当前状态，加载流程由工作线程推进
+     *
+     * @return true 尚未准备好
+     */
+    public boolean isNeedPrepare() {
         switch (mState) {
             case NONE:
-                return true;
             case SRC:
-                sendMessage(MSG_IMAGE_LOAD);
-                return true;
             case LOAD:
-                sendMessage(MSG_IMAGE_INIT, drawingRect);
                 return true;
             case INIT:
-                sendMessage(MSG_IMAGE_SCALE, drawingRect);
                 return mImageArea.isEmpty();
         }
         return false;
@@ -607,6 +1576,19 @@ class IntensifyImageDelegate {
         return new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
     }
 
+    /**
+     * 基础图的采样率：整图缩放到绘制区域内，且最多占用一半的缓存
+     */
+    static int getBaseSampleSize(int imageWidth, int imageHeight, int width, int height, int cacheSize) {
+        int sampleSize = getSampleSize(
+                Math.max(1f * imageWidth / width, 1f * imageHeight / height));
+
+        while (4L * (imageWidth / sampleSize) * (imageHeight / sampleSize) > cacheSize >> 1) {
+            sampleSize <<= 1;
+        }
+        return sampleSize;
+    }
+
     public static int getSampleSize(float size) {
         return Utils.getSampleSize(Math.round(size));
     }
@@ -621,7 +1603,9 @@ class IntensifyImageDelegate {
         @Override
         public void onAnimationUpdate(ValueAnimator animation) {
             Float value = (Float) animation.getAnimatedValue();
-            Utils.evaluate(value, mStartRect, mEndRect, mImageArea);
+            mArea.evaluate(value, mStartRect, mEndRect);
+            mArea.toRectF(mImageArea);
+            onMotion();
             requestScaleChange();
             requestInvalidate();
             requestAwakenScrollBars();
@@ -631,11 +1615,23 @@ class IntensifyImageDelegate {
 
     private class Image {
 
-        BitmapRegionDecoder mImageRegion;
+        IntensifyRegionDecoder mImageRegion;
 
         int mImageSampleSize;
         Bitmap mImageCache;
 
+        /**
+         * 基础图和逐级减半的基础图的字节数，以基础图为标识计入块缓存的上限
+         */
+        int mBaseSize;
+
+        /**
+         * 逐级减半的基础图，第i个是基础图的1/2^(i+1)
+         */
+        volatile Bitmap[] mMipmaps;
+
+        volatile int mDrawSampleSize;
+
         int mImageWidth;
         int mImageHeight;
 
@@ -643,81 +1639,299 @@ class IntensifyImageDelegate {
 
         volatile Pair<RectF, Rect> mCurrentState;
 
-        private Image(ImageDecoder decoder) {
+        final int mGeneration;
+
+        final Object mKey;
+
+        volatile IntensifyImageStore.Entry mShared;
+
+        int mRetainedSize;
+
+        private boolean mReleased = false;
+
+        private Options mOptions;
+
+        private Image(IntensifyImageDecoder decoder, int generation) {
+            mGeneration = generation;
+            mKey = decoder.getKey();
+            if (acquireShared()) return;
             try {
-                mImageRegion = decoder.newRegionDecoder();
+                mImageRegion = Orientation.open(decoder);
             } catch (IOException e) {
                 throw new RuntimeException("无法访问图片");
             }
 
-            mImageCaches = new IntensifyImageCache(5,
-                    mDisplayMetrics.widthPixels * mDisplayMetrics.heightPixels << 4,
-                    BLOCK_SIZE, mImageRegion);
+            initCaches();
         }
 
-        public void release() {
-            mImageRegion.recycle();
-            if (mImageCache != null && !mImageCache.isRecycled()) {
-                mImageCache.recycle();
+        private Image(Object key, PreparedImage prepared, int generation) {
+            mGeneration = generation;
+            mKey = key;
+            mImageCache = prepared.mImageCache;
+            mImageSampleSize = prepared.mImageSampleSize;
+            if (acquireShared()) {
+                prepared.mImageRegion.recycle();
+                return;
             }
-            mImage.mImageCaches.evictAll();
-            mCurrentState = null;
+            mImageRegion = prepared.mImageRegion;
+
+            initCaches();
         }
-    }
 
-    public static class ImageDrawable {
-        Bitmap mBitmap;
-        Rect mSrc;
-        Rect mDst;
+        /**
+         * 接管保留的图片，包括区域解码器、基础图和块
+         */
+        private Image(Image retained, int generation) {
+            mGeneration = generation;
+            mKey = retained.mKey;
+            mImageRegion = retained.mImageRegion;
+            mImageCache = retained.mImageCache;
+            mImageSampleSize = retained.mImageSampleSize;
+            mMipmaps = retained.mMipmaps;
+            mBaseSize = retained.mBaseSize;
+
+            mImageCaches = retained.mImageCaches;
+            mShared = retained.handOver();
+            mImageCaches.resume();
+            mImageCaches.setMaxSize(mCacheSize);
+            mImageCaches.setCachePolicy(mCachePolicy);
+        }
 
-        public ImageDrawable(Bitmap bitmap, Rect src, Rect dst) {
-            this.mBitmap = bitmap;
-            this.mSrc = src;
-            this.mDst = dst;
+        /**
+         * 取回配置变化前暂存的图片
+         */
+        private Image(Object key, IntensifyImageStore.Parked parked, int generation) {
+            mGeneration = generation;
+            mKey = key;
+            mImageRegion = parked.mImageRegion;
+            mImageCache = parked.mImageCache;
+            mImageSampleSize = parked.mImageSampleSize;
+            mBaseSize = mImageCache.getRowBytes() * mImageCache.getHeight();
+
+            mImageCaches = parked.mImageCaches;
+            mShared = parked.mShared;
+            mImageCaches.resume();
+            mImageCaches.setMaxSize(mCacheSize);
+            mImageCaches.setCachePolicy(mCachePolicy);
         }
-    }
 
-    public static class ImagePathDecoder implements ImageDecoder {
-        private String mPath;
+        /**
+         * 引用其他视图已打开的同一张图片
+         */
+        private boolean acquireShared() {
+            if (mKey == null || !mShareTiles) return false;
+            mShared = IntensifyImageStore.getInstance().acquire(mKey);
+            if (mShared == null) return false;
+            mImageRegion = mShared.mImageRegion;
+            mImageCaches = mShared.mImageCaches;
+            return true;
+        }
 
-        public ImagePathDecoder(String path) {
-            mPath = path;
+        private void initCaches() {
+            mImageCaches = new IntensifyImageCache(mCacheSize, BLOCK_SIZE, mImageRegion);
+            mImageCaches.setCachePolicy(mCachePolicy);
+            if (mKey == null || !mShareTiles) return;
+
+            mShared = IntensifyImageStore.getInstance().register(mKey, mImageRegion, mImageCaches);
+            if (mShared.mImageCaches != mImageCaches) {
+                // 其他视图同时打开了同一张图片
+                mImageRegion.recycle();
+                mImageRegion = mShared.mImageRegion;
+                mImageCaches = mShared.mImageCaches;
+            }
         }
 
-        @Override
-        public BitmapRegionDecoder newRegionDecoder() throws IOException {
-            return BitmapRegionDecoder.newInstance(mPath, false);
+        /**
+         * @return 是否有其他视图正在使用同一份区域解码器和块
+         */
+        boolean isShared() {
+            return mShared != null && IntensifyImageStore.getInstance().isShared(mShared);
         }
-    }
 
-    public static class ImageFileDecoder implements ImageDecoder {
-        private File mFile;
+        public boolean isCancelled() {
+            return mGeneration != IntensifyImageDelegate.this.mGeneration.get();
+        }
 
-        public ImageFileDecoder(File file) {
-            mFile = file;
+        /**
+         * 登记基础图的解码，与{@link #cancel()}互斥，已取消时不再解码
+         *
+         * @return 是否可以开始解码
+         */
+        synchronized boolean beginDecode(Options options) {
+            if (isCancelled()) return false;
+            mOptions = options;
+            return true;
         }
 
-        @Override
-        public BitmapRegionDecoder newRegionDecoder() throws IOException {
-            return BitmapRegionDecoder.newInstance(mFile.getAbsolutePath(), false);
+        synchronized void endDecode() {
+            mOptions = null;
+        }
+
+        //@MainThread
+        public void cancel() {
+            synchronized (this) {
+                if (mOptions != null) {
+                    mOptions.requestCancelDecode();
+                }
+            }
+            if (!isShared()) {
+                mImageCaches.cancel();
+            }
+        }
+
+        /**
+         * 导出时引用的区域解码器和块，不共享的图片登记为只属于自己，导出期间不会被回收
+         *
+         * @return 已释放时返回null
+         */
+        synchronized IntensifyImageStore.Entry exportEntry() {
+            if (mReleased) return null;
+            if (mShared == null) {
+                mShared = IntensifyImageStore.getInstance().register(new Object(), mImageRegion, mImageCaches);
+            }
+            return mShared;
+        }
+
+        /**
+         * 交给暂存或新的图片，之后不再释放或导出
+         */
+        synchronized IntensifyImageStore.Entry handOver() {
+            mReleased = true;
+            return mShared;
+        }
+
+        /**
+         * 释放图片，重复调用时忽略，共享的图片只减少一次引用
+         */
+        public void release() {
+            IntensifyImageStore.Entry shared;
+            synchronized (this) {
+                if (mReleased) return;
+                mReleased = true;
+                shared = mShared;
+                mShared = null;
+            }
+            recycleMipmaps();
+            Bitmap base = mImageCache;
+            setBase(null);
+            if (shared == null || IntensifyImageStore.getInstance().release(shared)) {
+                mImageRegion.recycle();
+                mImageCaches.evictAll();
+            }
+            if (base != null && !base.isRecycled()) {
+                base.recycle();
+            }
+            mCurrentState = null;
+        }
+
+        /**
+         * 更换基础图，不回收原来的，只更新计入块缓存上限的大小
+         *
+         * @param base 新的基础图，为null时不再计入
+         */
+        void setBase(Bitmap base) {
+            Bitmap previous = mImageCache;
+            if (previous != null && previous != base) {
+                mImageCaches.removeBase(previous);
+            }
+            mImageCache = base;
+            mBaseSize = base != null ? base.getRowBytes() * base.getHeight() : 0;
+            if (base != null) {
+                mImageCaches.setBaseSize(base, mBaseSize);
+            }
+        }
+
+        /**
+         * 从基础图逐级缩小一半，直到短边小于{@link #MIPMAP_MIN_SIZE}，计入缓存大小
+         */
+        //@WorkerThread
+        void buildMipmaps() {
+            Bitmap bitmap = mImageCache;
+            if (bitmap == null || bitmap.isRecycled()) return;
+            int size = bitmap.getRowBytes() * bitmap.getHeight();
+            List<Bitmap> mipmaps = new ArrayList<>();
+            while (Math.min(bitmap.getWidth(), bitmap.getHeight()) >> 1 >= MIPMAP_MIN_SIZE) {
+                if (isCancelled()) break;
+                bitmap = Bitmap.createScaledBitmap(bitmap,
+                        bitmap.getWidth() >> 1, bitmap.getHeight() >> 1, true);
+                mipmaps.add(bitmap);
+                size += bitmap.getRowBytes() * bitmap.getHeight();
+            }
+            mMipmaps = mipmaps.toArray(new Bitmap[mipmaps.size()]);
+            mBaseSize = size;
+            mImageCaches.setBaseSize(mImageCache, size);
+        }
+
+        void recycleMipmaps() {
+            Bitmap[] mipmaps = mMipmaps;
+            mMipmaps = null;
+            if (mipmaps == null) return;
+            for (Bitmap bitmap : mipmaps) {
+                bitmap.recycle();
+            }
+            Bitmap bitmap = mImageCache;
+            if (bitmap != null && !bitmap.isRecycled()) {
+                mBaseSize = bitmap.getRowBytes() * bitmap.getHeight();
+                mImageCaches.setBaseSize(bitmap, mBaseSize);
+            }
+        }
+
+        /**
+         * @param ratio 基础图显示的大小与本身大小之比
+         * @return 不小于显示大小的最小一级基础图
+         */
+        Bitmap getBase(float ratio) {
+            Bitmap[] mipmaps = mMipmaps;
+            if (mipmaps == null || ratio <= 0) return mImageCache;
+            int level = Math.min(Utils.floor((float) (-Math.log(ratio) / Math.log(2))), mipmaps.length);
+            for (int i = level - 1; i >= 0; i--) {
+                if (!mipmaps[i].isRecycled()) return mipmaps[i];
+            }
+            return mImageCache;
         }
     }
 
-    public static class ImageInputStreamDecoder implements ImageDecoder {
-        private InputStream mInputStream;
+    /**
+     * 最近被替换的图片，按图片源标识保存。被取走({@link #remove})的图片不回收
+     */
+    private static class RetainedImages extends IntensifyCache<Object, Image, Void> {
+
+        RetainedImages(int maxSize) {
+            super(Math.max(maxSize, 1));
+        }
 
-        public ImageInputStreamDecoder(InputStream inputStream) {
-            mInputStream = inputStream;
+        @Override
+        protected void entryRemoved(boolean evicted, Object key, Image oldValue, Image newValue) {
+            if (evicted || newValue != null) {
+                oldValue.release();
+            }
         }
 
         @Override
-        public BitmapRegionDecoder newRegionDecoder() throws IOException {
-            return BitmapRegionDecoder.newInstance(mInputStream, false);
+        protected int sizeOf(Object key, Image value) {
+            return value.mRetainedSize;
         }
     }
 
-    public interface ImageDecoder {
-        BitmapRegionDecoder newRegionDecoder() throws IOException;
+    public static class ImageDrawable {
+        Bitmap mBitmap;
+        Rect mSrc;
+        Rect mDst;
+        int mOrientation = ExifInterface.ORIENTATION_NORMAL;
+
+        public ImageDrawable(Bitmap bitmap, Rect src, Rect dst) {
+            this.mBitmap = bitmap;
+            this.mSrc = src;
+            this.mDst = dst;
+        }
+
+        /**
+         * @param orientation 图片保持原方向，绘制时按EXIF方向旋转或翻转
+         */
+        public ImageDrawable(Bitmap bitmap, Rect src, Rect dst, int orientation) {
+            this(bitmap, src, dst);
+            this.mOrientation = orientation;
+        }
     }
 
     public interface Callback {
@@ -728,6 +1942,39 @@ class IntensifyImageDelegate {
         void onScaleChange(float scale);
     }
 
+    /**
+     * 工作线程空闲时每次解码一个预取的块，有新的消息时优先处理。手势进行中不预取
+     */
+    private class IdlePrefetcher implements MessageQueue.IdleHandler {
+
+        @Override
+        public boolean queueIdle() {
+            Image image = mImage;
+            if (mPrefetches.isEmpty() || image == null || image.isCancelled()
+                    || mState != State.FREE || !mVisible || mInMotion) {
+                return true;
+            }
+
+            IntensifyImageCache imageCaches = image.mImageCaches;
+            if (imageCaches.totalSize() > imageCaches.getMaxSize() * PREFETCH_PERCENT) {
+                mPrefetches.clear();
+                return true;
+            }
+
+            Pair<Integer, Point> block = mPrefetches.poll();
+            IntensifyImageCache.ImageCache imageCache = imageCaches.get(block.first);
+            if (imageCache != null && !imageCache.contains(block.second)) {
+                imageCache.createGet(block.second);
+            }
+
+            if (!mPrefetches.isEmpty()) {
+                // 唤醒队列以便再次空闲时继续预取
+                sendMessage(MSG_IMAGE_PREFETCH);
+            }
+            return true;
+        }
+    }
+
     private class IntensifyImageHandler extends Handler {
 
         public IntensifyImageHandler(Looper looper) {
@@ -739,36 +1986,64 @@ class IntensifyImageDelegate {
             switch (msg.what) {
                 case MSG_IMAGE_DRAW:
                     prepareDraw((Rect) msg.obj);
+                    scheduleDecay();
                     requestInvalidate();
                     break;
 
-                case MSG_IMAGE_SCALE:
-                    initScaleType((Rect) msg.obj);
+                case MSG_IMAGE_SRC:
+                    if (prepare((IntensifyImageDecoder) msg.obj, msg.arg1)) {
+                        advance();
+                        requestInvalidate();
+                        requestAwakenScrollBars();
+                    }
+                    break;
+
+                case MSG_IMAGE_PREPARE:
+                    advance();
                     requestInvalidate();
                     requestAwakenScrollBars();
                     break;
 
-                case MSG_IMAGE_SRC:
-                    prepare((ImageDecoder) msg.obj);
-                    requestInvalidate();
+                case MSG_IMAGE_RELEASE:
+                    release();
                     break;
 
-                case MSG_IMAGE_LOAD:
-                    load();
-                    requestInvalidate();
+                case MSG_MOTION_IDLE:
+                    settle();
                     break;
 
-                case MSG_IMAGE_INIT:
-                    initialize((Rect) msg.obj);
-                    requestInvalidate();
+                case MSG_IMAGE_TRIM:
+                    trim();
                     break;
 
-                case MSG_IMAGE_RELEASE:
-                    release();
+                case MSG_IMAGE_DECAY:
+                    decay();
+                    break;
+
+                case MSG_IMAGE_PREFETCH:
+                    break;
+
+                case MSG_IMAGE_REGION:
+                    decodeRegion((Rect) msg.obj);
+                    break;
+
+                case MSG_IMAGE_MIPMAP:
+                    if (mImage != null && mImage.mMipmaps == null) {
+                        mImage.buildMipmaps();
+                        mCallback.onRequestInvalidate();
+                    }
                     break;
 
                 case MSG_QUIT:
+                    if (msg.arg1 == 1) {
+                        saveViewport();
+                        park();
+                        if (msg.obj != null) {
+                            IntensifyImageStore.getInstance().endPark(msg.obj);
+                        }
+                    }
                     release();
+                    mRetained.evictAll();
                     try {
                         getLooper().quit();
                     } catch (Throwable throwable) {
@@ -0,0 +1,281 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 按任意缩放值导出原图中的区域：优先使用视图已缓存的块，缺少的块在调用线程中逐个解码，
+ * 结果按宽度有限的分块输出，内存占用与导出区域的大小无关。不能在主线程调用。
+ * 导出期间引用视图的区域解码器和块，视图换图或被销毁时不会回收它们，已被回收的块重新解码
+ */
+public class IntensifyImageExporter {
+
+    private final IntensifyImageStore.Entry mEntry;
+
+    private final IntensifyRegionDecoder mImageRegion;
+
+    private final IntensifyImageCache mImageCaches;
+
+    private final Bitmap mImageCache;
+
+    private final int mImageSampleSize;
+
+    private final int mBlockSize;
+
+    private final Rect mImageRect;
+
+    private final int mOrientation;
+
+    private final Matrix mMatrix = new Matrix();
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * 输出分块的最大宽度，一个块放大后更宽时按一个块
+     */
+    private static final int MAX_TILE_WIDTH = 2048;
+
+    IntensifyImageExporter(IntensifyImageStore.Entry entry, Bitmap imageCache, int imageSampleSize,
+                           int blockSize) {
+        mEntry = entry;
+        mImageRegion = entry.mImageRegion;
+        mImageCaches = entry.mImageCaches;
+        mImageCache = imageCache;
+        mImageSampleSize = imageSampleSize;
+        mBlockSize = blockSize;
+        mImageRect = new Rect(0, 0, mImageRegion.getWidth(), mImageRegion.getHeight());
+        mOrientation = Orientation.of(mImageRegion);
+    }
+
+    /**
+     * 导出为一张图片
+     *
+     * @param region 原图中的区域
+     * @param scale  输出相对原图的缩放值
+     * @return 导出的图片，失败或被取消时返回null
+     */
+    public Bitmap export(Rect region, float scale) {
+        BitmapSink sink = new BitmapSink();
+        if (!export(region, scale, sink)) {
+            Bitmap bitmap = sink.getBitmap();
+            if (bitmap != null) bitmap.recycle();
+            return null;
+        }
+        return sink.getBitmap();
+    }
+
+    /**
+     * 逐块导出，按行从左到右
+     *
+     * @param region 原图中的区域
+     * @param scale  输出相对原图的缩放值
+     * @param sink   接收分块
+     * @return 是否完整导出，线程被中断或图片已被回收时返回false
+     */
+    public boolean export(Rect region, float scale, RegionSink sink) {
+        Rect rect = new Rect(region);
+        if (scale <= 0 || !rect.intersect(mImageRect)) return false;
+        if (!IntensifyImageStore.getInstance().retain(mEntry)) return false;
+        try {
+            return exportTiles(rect, scale, sink);
+        } catch (IllegalStateException e) {
+            // 区域解码器已被回收，按取消处理
+            return false;
+        } finally {
+            if (IntensifyImageStore.getInstance().release(mEntry)) {
+                mImageRegion.recycle();
+                mImageCaches.evictAll();
+            }
+        }
+    }
+
+    private boolean exportTiles(Rect rect, float scale, RegionSink sink) {
+        int width = Math.max(Math.round(rect.width() * scale), 1);
+        int height = Math.max(Math.round(rect.height() * scale), 1);
+
+        // 与绘制时相同的级别，超出已有块的级别时使用基础图
+        int sampleSize = IntensifyImageDelegate.getSampleSize(1f / scale);
+        IntensifyImageCache.ImageCache imageCache = sampleSize < mImageSampleSize
+                ? mImageCaches.get(sampleSize) : null;
+        int rowSize = mBlockSize * sampleSize;
+
+        // 分块按块的边界划分，每个块只属于一个分块
+        int columns = Math.max((int) (MAX_TILE_WIDTH / (rowSize * scale)), 1);
+        int tileSize = rowSize * columns;
+
+        Bitmap tile = Bitmap.createBitmap(Math.min(Utils.ceil(tileSize * scale) + 1, width),
+                Utils.ceil(rowSize * scale) + 1, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(tile);
+
+        sink.onStart(width, height);
+        try {
+            for (int i = rect.top / rowSize; i <= (rect.bottom - 1) / rowSize; i++) {
+                int bandTop = Math.max(i * rowSize, rect.top);
+                int bandBottom = Math.min((i + 1) * rowSize, rect.bottom);
+                int top = Math.round((bandTop - rect.top) * scale);
+                int bottom = Math.min(Math.round((bandBottom - rect.top) * scale), height);
+                if (bottom <= top) continue;
+
+                for (int c = rect.left / tileSize; c <= (rect.right - 1) / tileSize; c++) {
+                    if (Thread.currentThread().isInterrupted() || mImageCaches.isCancelled()) {
+                        return false;
+                    }
+
+                    int tileLeft = Math.max(c * tileSize, rect.left);
+                    int tileRight = Math.min((c + 1) * tileSize, rect.right);
+                    int left = Math.round((tileLeft - rect.left) * scale);
+                    int right = Math.min(Math.round((tileRight - rect.left) * scale), width);
+                    if (right <= left) continue;
+
+                    tile.eraseColor(0);
+                    if (imageCache != null) {
+                        drawBlocks(canvas, imageCache, rect, i, tileLeft / rowSize,
+                                (tileRight - 1) / rowSize, scale, left, top);
+                    } else {
+                        drawBase(canvas, rect, new Rect(tileLeft, bandTop, tileRight, bandBottom),
+                                scale, left, top);
+                    }
+                    sink.onTile(tile, left, top, right - left, bottom - top);
+                }
+            }
+            sink.onFinish();
+            return true;
+        } finally {
+            tile.recycle();
+        }
+    }
+
+    /**
+     * 绘制一行中第start到end列的块，已缓存的直接使用，缺少的逐个解码，用后回收。
+     * 同一个解码器不能并行解码，多线程只会增加开销
+     */
+    private void drawBlocks(Canvas canvas, IntensifyImageCache.ImageCache imageCache,
+                            Rect rect, int row, int start, int end, float scale, int left, int top) {
+        int rowSize = mBlockSize * imageCache.level;
+        Set<Point> drawn = new HashSet<>();
+        for (int j = start; j <= end; j++) {
+            if (Thread.currentThread().isInterrupted() || mImageCaches.isCancelled()) return;
+
+            // 条带级别的缓存可以直接使用，缺少时只解码块，不解码整行(列)的条带
+            Point key = imageCache.keyOf(j, row);
+            if (drawn.contains(key)) continue;
+            Bitmap bitmap = imageCache.justGet(key);
+            if (bitmap != null && !bitmap.isRecycled()) {
+                drawn.add(key);
+                drawBlock(canvas, imageCache.keyRect(key), bitmap, rect, scale, left, top);
+                continue;
+            }
+
+            Rect blockRect = IntensifyImageCache.blockRect(j, row, rowSize);
+            bitmap = decode(blockRect, imageCache.level);
+            if (bitmap == null) continue;
+            drawBlock(canvas, blockRect, bitmap, rect, scale, left, top);
+            bitmap.recycle();
+        }
+    }
+
+    private Bitmap decode(Rect blockRect, int sampleSize) {
+        blockRect = new Rect(blockRect);
+        if (!blockRect.intersect(mImageRect)) return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        return mImageRegion.decodeRegion(blockRect, options);
+    }
+
+    private void drawBlock(Canvas canvas, Rect blockRect, Bitmap bitmap, Rect rect,
+                           float scale, int left, int top) {
+        if (bitmap.isRecycled()) return;
+        blockRect = new Rect(blockRect);
+        if (!blockRect.intersect(mImageRect)) return;
+        RectF dst = new RectF((blockRect.left - rect.left) * scale - left,
+                (blockRect.top - rect.top) * scale - top,
+                (blockRect.right - rect.left) * scale - left,
+                (blockRect.bottom - rect.top) * scale - top);
+        Orientation.draw(canvas, bitmap, new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()),
+                Utils.round(dst), mOrientation, mMatrix, mPaint);
+    }
+
+    /**
+     * @param band 分块在原图中的区域
+     */
+    private void drawBase(Canvas canvas, Rect rect, Rect band, float scale, int left, int top) {
+        if (mImageCache == null || mImageCache.isRecycled()) {
+            // 视图已换图，基础图被回收，按同样的级别解码这一部分
+            Bitmap bitmap = decode(band, mImageSampleSize);
+            if (bitmap == null) return;
+            drawBlock(canvas, band, bitmap, rect, scale, left, top);
+            bitmap.recycle();
+            return;
+        }
+        Rect src = new Rect(band.left / mImageSampleSize, band.top / mImageSampleSize,
+                Utils.ceil(1f * band.right / mImageSampleSize), Utils.ceil(1f * band.bottom / mImageSampleSize));
+        RectF dst = new RectF((band.left - rect.left) * scale - left, (band.top - rect.top) * scale - top,
+                (band.right - rect.left) * scale - left, (band.bottom - rect.top) * scale - top);
+        src = Orientation.toSource(src, mOrientation, mImageCache.getWidth(), mImageCache.getHeight());
+        Orientation.draw(canvas, mImageCache, src, Utils.round(dst), mOrientation, mMatrix, mPaint);
+    }
+
+    /**
+     * 接收导出的分块
+     */
+    public interface RegionSink {
+
+        /**
+         * @param width  输出宽度
+         * @param height 输出高度
+         */
+        void onStart(int width, int height);
+
+        /**
+         * 分块会被复用，需要在返回前复制或编码
+         *
+         * @param tile   分块，有效部分在左上角
+         * @param left   在输出中的横坐标
+         * @param top    在输出中的纵坐标
+         * @param width  分块中有效的宽度
+         * @param height 分块中有效的高度
+         */
+        void onTile(Bitmap tile, int left, int top, int width, int height);
+
+        void onFinish();
+    }
+
+    /**
+     * 把分块拼成一张图片
+     */
+    public static class BitmapSink implements RegionSink {
+        private Bitmap mBitmap;
+
+        private Canvas mCanvas;
+
+        @Override
+        public void onStart(int width, int height) {
+            mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mCanvas = new Canvas(mBitmap);
+        }
+
+        @Override
+        public void onTile(Bitmap tile, int left, int top, int width, int height) {
+            mCanvas.drawBitmap(tile, new Rect(0, 0, width, height),
+                    new Rect(left, top, left + width, top + height), null);
+        }
+
+        @Override
+        public void onFinish() {
+            mCanvas = null;
+        }
+
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.BitmapRegionDecoder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 按文件打开的图片源
+ */
+public class IntensifyImageFileDecoder implements IntensifyImageDecoder {
+    private File mFile;
+
+    public IntensifyImageFileDecoder(File file) {
+        mFile = file;
+    }
+
+    @Override
+    public IntensifyRegionDecoder newRegionDecoder() throws IOException {
+        return new IntensifyBitmapRegionDecoder(
+                BitmapRegionDecoder.newInstance(mFile.getAbsolutePath(), false));
+    }
+
+    @Override
+    public Object getKey() {
+        return mFile.getAbsolutePath();
+    }
+
+    @Override
+    public int getOrientation() {
+        return Orientation.read(mFile.getAbsolutePath());
+    }
+}
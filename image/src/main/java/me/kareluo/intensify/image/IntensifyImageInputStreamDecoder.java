@@ -0,0 +1,56 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.BitmapRegionDecoder;
+import android.media.ExifInterface;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 从流打开的图片源，流只能读取一次
+ */
+public class IntensifyImageInputStreamDecoder implements IntensifyImageDecoder {
+    private InputStream mInputStream;
+
+    private Object mKey;
+
+    private int mOrientation;
+
+    public IntensifyImageInputStreamDecoder(InputStream inputStream) {
+        this(inputStream, null);
+    }
+
+    /**
+     * @param inputStream 图片流
+     * @param key         图片源的标识，为null时无法与预加载的图片对应
+     */
+    public IntensifyImageInputStreamDecoder(InputStream inputStream, Object key) {
+        this(inputStream, key, ExifInterface.ORIENTATION_NORMAL);
+    }
+
+    /**
+     * @param inputStream 图片流
+     * @param key         图片源的标识，为null时无法与预加载的图片对应
+     * @param orientation EXIF方向，流无法再次读取，需要调用者提供
+     */
+    public IntensifyImageInputStreamDecoder(InputStream inputStream, Object key, int orientation) {
+        mInputStream = inputStream;
+        mKey = key;
+        mOrientation = orientation;
+    }
+
+    @Override
+    public IntensifyRegionDecoder newRegionDecoder() throws IOException {
+        return new IntensifyBitmapRegionDecoder(BitmapRegionDecoder.newInstance(mInputStream, false));
+    }
+
+    @Override
+    public Object getKey() {
+        return mKey;
+    }
+
+    @Override
+    public int getOrientation() {
+        return mOrientation;
+    }
+}
@@ -0,0 +1,32 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.BitmapRegionDecoder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 按路径打开的图片源
+ */
+public class IntensifyImagePathDecoder implements IntensifyImageDecoder {
+    private String mPath;
+
+    public IntensifyImagePathDecoder(String path) {
+        mPath = path;
+    }
+
+    @Override
+    public IntensifyRegionDecoder newRegionDecoder() throws IOException {
+        return new IntensifyBitmapRegionDecoder(BitmapRegionDecoder.newInstance(mPath, false));
+    }
+
+    @Override
+    public Object getKey() {
+        return new File(mPath).getAbsolutePath();
+    }
+
+    @Override
+    public int getOrientation() {
+        return Orientation.read(mPath);
+    }
+}
@@ -0,0 +1,296 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory.Options;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 预加载即将显示的图片：在后台打开区域解码器并解码基础图，
+ * 设置了此预加载器的{@link IntensifyImageView}加载相同的图片时直接使用，不再解码。
+ * <p>
+ * 内存上限：尚未取走的图片有单独的上限({@link #setMaxSize})，不计入视图的缓存上限。
+ * 默认为视图缓存上限的一半，即最大的一张基础图，因此一个视图加上预加载器最多占用
+ * 视图缓存上限的1.5倍，多个视图共用一个预加载器时为各视图上限之和再加上这一半。
+ * 需要更严格的总上限时相应减小{@link #setMaxSize}或视图的缓存上限
+ */
+public class IntensifyImagePreloader {
+
+    private static final String TAG = "IntensifyImagePreloader";
+
+    private final PreparedCache mPrepared;
+
+    private final Map<Object, Job> mPending = new HashMap<>();
+
+    private final PreloadHandler mHandler;
+
+    private final int mCacheSize;
+
+    private static final int MSG_PRELOAD = 0;
+
+    /**
+     * 取走正在预加载的图片时最多等待的时间，超时后取消预加载，由调用者自己解码
+     */
+    private static final long TAKE_WAIT = 1000;
+
+    /**
+     * @param metrics 屏幕信息，基础图的大小限制与{@link IntensifyImageView}一致
+     */
+    public IntensifyImagePreloader(DisplayMetrics metrics) {
+        mCacheSize = metrics.widthPixels * metrics.heightPixels << 4;
+        mPrepared = new PreparedCache(mCacheSize >> 1);
+        HandlerThread handlerThread = new HandlerThread(TAG);
+        handlerThread.start();
+        mHandler = new PreloadHandler(handlerThread.getLooper());
+    }
+
+    public void preload(String path, int width, int height) {
+        preload(new IntensifyImagePathDecoder(path), width, height);
+    }
+
+    public void preload(File file, int width, int height) {
+        preload(new IntensifyImageFileDecoder(file), width, height);
+    }
+
+    /**
+     * 预加载图片，没有{@link IntensifyImageDecoder#getKey()}的图片无法交接，会被忽略
+     *
+     * @param decoder 图片源
+     * @param width   预计的显示宽度
+     * @param height  预计的显示高度
+     */
+    public synchronized void preload(IntensifyImageDecoder decoder, int width, int height) {
+        Object key = decoder.getKey();
+        if (key == null || width <= 0 || height <= 0) return;
+        if (mPending.containsKey(key) || mPrepared.contains(key)) return;
+        mPending.put(key, new Job());
+        mHandler.obtainMessage(MSG_PRELOAD, width, height, decoder).sendToTarget();
+    }
+
+    /**
+     * 取消预加载，已准备好的图片也一并回收
+     *
+     * @param key 图片源的标识
+     */
+    public synchronized void cancel(Object key) {
+        Job job = mPending.remove(key);
+        if (job != null) {
+            job.mOptions.requestCancelDecode();
+        }
+        mPrepared.remove(key);
+    }
+
+    /**
+     * 设置尚未取走的图片占用的内存上限，不计入视图的缓存上限，与视图同时使用时的总上限为两者之和
+     *
+     * @param maxSize 字节数
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        mPrepared.resize(maxSize);
+    }
+
+    public synchronized int getMaxSize() {
+        return mPrepared.maxSize();
+    }
+
+    public synchronized void clear() {
+        for (Job job : mPending.values()) {
+            job.mOptions.requestCancelDecode();
+        }
+        mPending.clear();
+        mPrepared.evictAll();
+    }
+
+    /**
+     * 回收全部图片并结束后台线程，之后不能再使用
+     */
+    public void quit() {
+        clear();
+        mHandler.getLooper().quit();
+    }
+
+    /**
+     * 取走已准备好的图片，之后由调用者负责回收。正在预加载时最多等待{@link #TAKE_WAIT}，
+     * 完成后交给调用者；超时或还在排队的预加载不再进行，由调用者自己解码
+     *
+     * @param key 图片源的标识
+     * @return 准备好的图片，没有时返回null
+     */
+    //@WorkerThread
+    synchronized PreparedImage take(Object key) {
+        if (key == null) return null;
+        PreparedImage image = mPrepared.justGet(key);
+        if (image != null) {
+            image.mTaken = true;
+            mPrepared.remove(key);
+            return image;
+        }
+
+        Job job = mPending.get(key);
+        if (job == null) return null;
+        if (!job.mStarted) {
+            mPending.remove(key);
+            return null;
+        }
+        job.mClaimed = true;
+        long deadline = SystemClock.uptimeMillis() + TAKE_WAIT;
+        while (!job.mDone) {
+            long timeout = deadline - SystemClock.uptimeMillis();
+            if (timeout <= 0) break;
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!job.mDone) {
+            // 不再等待，调用者自己解码，完成的图片不再需要
+            job.mClaimed = false;
+            mPending.remove(key);
+            job.mOptions.requestCancelDecode();
+            return null;
+        }
+        return job.mResult;
+    }
+
+    //@WorkerThread
+    private void prepare(IntensifyImageDecoder decoder, int width, int height) {
+        Object key = decoder.getKey();
+        Job job;
+        synchronized (this) {
+            job = mPending.get(key);
+            if (job == null) return;
+            job.mStarted = true;
+        }
+
+        IntensifyRegionDecoder region;
+        try {
+            region = Orientation.open(decoder);
+        } catch (IOException e) {
+            Logger.w(TAG, e);
+            finish(key, job, null);
+            return;
+        }
+
+        int imageWidth = region.getWidth(), imageHeight = region.getHeight();
+        Options options = job.mOptions;
+        options.inSampleSize = IntensifyImageDelegate.getBaseSampleSize(
+                imageWidth, imageHeight, width, height, mCacheSize);
+        Bitmap bitmap = region.decodeRegion(new Rect(0, 0, imageWidth, imageHeight), options);
+        if (bitmap == null) {
+            region.recycle();
+            finish(key, job, null);
+            return;
+        }
+        finish(key, job, new PreparedImage(region, bitmap, options.inSampleSize));
+    }
+
+    /**
+     * 结束预加载，等待中的调用者直接取走，否则放入缓存
+     *
+     * @param image 准备好的图片，失败时为null
+     */
+    private synchronized void finish(Object key, Job job, PreparedImage image) {
+        boolean pending = mPending.get(key) == job;
+        if (pending) mPending.remove(key);
+        if (image != null) {
+            if (job.mClaimed) {
+                image.mTaken = true;
+                job.mResult = image;
+            } else if (pending) {
+                mPrepared.put(key, image);
+            } else {
+                // 解码期间被取消
+                image.release();
+            }
+        }
+        job.mDone = true;
+        notifyAll();
+    }
+
+    /**
+     * 一次预加载，由预加载器同步
+     */
+    private static class Job {
+        final Options mOptions = new Options();
+
+        boolean mStarted = false;
+
+        boolean mClaimed = false;
+
+        boolean mDone = false;
+
+        PreparedImage mResult;
+    }
+
+    /**
+     * 已打开的区域解码器和解码好的基础图
+     */
+    static class PreparedImage {
+        final IntensifyRegionDecoder mImageRegion;
+
+        final Bitmap mImageCache;
+
+        final int mImageSampleSize;
+
+        boolean mTaken = false;
+
+        PreparedImage(IntensifyRegionDecoder region, Bitmap bitmap, int sampleSize) {
+            mImageRegion = region;
+            mImageCache = bitmap;
+            mImageSampleSize = sampleSize;
+        }
+
+        void release() {
+            mImageRegion.recycle();
+            if (!mImageCache.isRecycled()) {
+                mImageCache.recycle();
+            }
+        }
+    }
+
+    private static class PreparedCache extends IntensifyCache<Object, PreparedImage, Void> {
+
+        PreparedCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Object key, PreparedImage oldValue,
+                                    PreparedImage newValue) {
+            if (oldValue != null && !oldValue.mTaken) {
+                oldValue.release();
+            }
+        }
+
+        @Override
+        protected int sizeOf(Object key, PreparedImage value) {
+            return value.mImageCache.getRowBytes() * value.mImageCache.getHeight();
+        }
+    }
+
+    private class PreloadHandler extends Handler {
+
+        PreloadHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_PRELOAD) {
+                prepare((IntensifyImageDecoder) msg.obj, msg.arg1, msg.arg2);
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 进程内按图片源标识共享的区域解码器和块缓存，多个视图显示同一张图片时只解码一次。
+ * 每个引用都要在不再使用时{@link #release}，最后一个引用释放时由调用者回收。
+ * 配置变化时视图被销毁，图片可以暂存在这里，由重建的视图取回
+ */
+class IntensifyImageStore {
+
+    private static final IntensifyImageStore sInstance = new IntensifyImageStore();
+
+    private final Map<Object, Entry> mEntries = new HashMap<>();
+
+    private final Map<Object, Parked> mParked = new HashMap<>();
+
+    private final Map<Object, Integer> mParking = new HashMap<>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private static final long PARK_TIME = 5000;
+
+    private static final long PARK_WAIT = 1000;
+
+    static IntensifyImageStore getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * 引用已有的图片
+     *
+     * @param key 图片源的标识
+     * @return 已有的图片，没有时返回null
+     */
+    synchronized Entry acquire(Object key) {
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            entry.mRefCount++;
+            entry.mImageCaches.resume();
+        }
+        return entry;
+    }
+
+    /**
+     * 登记新打开的图片，如果其他视图已先登记，则引用已有的图片，新打开的由调用者回收
+     *
+     * @param key          图片源的标识
+     * @param imageRegion  区域解码器
+     * @param imageCaches  块缓存
+     * @return 登记的或已有的图片
+     */
+    synchronized Entry register(Object key, IntensifyRegionDecoder imageRegion,
+                                IntensifyImageCache imageCaches) {
+        Entry entry = acquire(key);
+        if (entry == null) {
+            entry = new Entry(key, imageRegion, imageCaches);
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 再引用一次已持有的图片
+     *
+     * @param entry 图片
+     * @return 是否成功，最后一个引用已释放时返回false
+     */
+    synchronized boolean retain(Entry entry) {
+        if (entry.mRefCount <= 0) return false;
+        entry.mRefCount++;
+        return true;
+    }
+
+    /**
+     * 释放一个引用
+     *
+     * @param entry 图片
+     * @return 是否为最后一个引用，是时由调用者回收区域解码器和块
+     */
+    synchronized boolean release(Entry entry) {
+        if (--entry.mRefCount > 0) return false;
+        if (mEntries.get(entry.mKey) == entry) {
+            mEntries.remove(entry.mKey);
+        }
+        return true;
+    }
+
+    /**
+     * @return 是否还有其他引用
+     */
+    synchronized boolean isShared(Entry entry) {
+        return entry.mRefCount > 1;
+    }
+
+    /**
+     * 暂存图片，超过{@link #PARK_TIME}没有被取回时回收
+     *
+     * @param key    图片源的标识
+     * @param parked 图片
+     */
+    synchronized void park(final Object key, final Parked parked) {
+        Parked previous = mParked.put(key, parked);
+        if (previous != null) {
+            previous.release();
+        }
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                expire(key, parked);
+            }
+        }, PARK_TIME);
+    }
+
+    /**
+     * 在销毁视图的线程中登记即将暂存的图片，暂存在工作线程中完成，
+     * 重建的视图取回同一张图片时会等待，之后需要{@link #endPark}
+     *
+     * @param key 图片源的标识
+     */
+    synchronized void beginPark(Object key) {
+        Integer count = mParking.get(key);
+        mParking.put(key, count != null ? count + 1 : 1);
+    }
+
+    /**
+     * 暂存完成或不再暂存
+     *
+     * @param key 图片源的标识
+     */
+    synchronized void endPark(Object key) {
+        Integer count = mParking.get(key);
+        if (count == null) return;
+        if (count > 1) {
+            mParking.put(key, count - 1);
+        } else {
+            mParking.remove(key);
+        }
+        notifyAll();
+    }
+
+    /**
+     * 取回暂存的图片，之后由调用者负责回收。同一张图片正在暂存时最多等待{@link #PARK_WAIT}
+     *
+     * @param key 图片源的标识
+     * @return 暂存的图片，没有时返回null
+     */
+    //@WorkerThread
+    synchronized Parked unpark(Object key) {
+        long deadline = SystemClock.uptimeMillis() + PARK_WAIT;
+        while (!mParked.containsKey(key) && mParking.containsKey(key)) {
+            long timeout = deadline - SystemClock.uptimeMillis();
+            if (timeout <= 0) break;
+            try {
+                wait(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return mParked.remove(key);
+    }
+
+    private synchronized void expire(Object key, Parked parked) {
+        if (mParked.get(key) == parked) {
+            mParked.remove(key);
+            parked.release();
+        }
+    }
+
+    /**
+     * 暂存的区域解码器、块缓存和基础图
+     */
+    static class Parked {
+        final IntensifyRegionDecoder mImageRegion;
+
+        final IntensifyImageCache mImageCaches;
+
+        final Entry mShared;
+
+        final Bitmap mImageCache;
+
+        final int mImageSampleSize;
+
+        Parked(IntensifyRegionDecoder imageRegion, IntensifyImageCache imageCaches, Entry shared,
+               Bitmap imageCache, int imageSampleSize) {
+            mImageRegion = imageRegion;
+            mImageCaches = imageCaches;
+            mShared = shared;
+            mImageCache = imageCache;
+            mImageSampleSize = imageSampleSize;
+        }
+
+        void release() {
+            mImageCaches.removeBase(mImageCache);
+            if (mShared == null || getInstance().release(mShared)) {
+                mImageRegion.recycle();
+                mImageCaches.evictAll();
+            }
+            if (!mImageCache.isRecycled()) {
+                mImageCache.recycle();
+            }
+        }
+    }
+
+    static class Entry {
+        final Object mKey;
+
+        final IntensifyRegionDecoder mImageRegion;
+
+        final IntensifyImageCache mImageCaches;
+
+        private int mRefCount = 1;
+
+        private Entry(Object key, IntensifyRegionDecoder imageRegion, IntensifyImageCache imageCaches) {
+            mKey = key;
+            mImageRegion = imageRegion;
+            mImageCaches = imageCaches;
+        }
+    }
+}
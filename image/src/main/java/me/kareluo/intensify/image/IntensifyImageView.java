@@ -1,19 +1,25 @@
 package me.kareluo.intensify.image;
 
+import android.app.Activity;
 import android.content.Context;
+import android.content.ContextWrapper;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.util.AttributeSet;
 import android.view.View;
 import android.widget.OverScroller;
 
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 
 import me.kareluo.intensify.image.IntensifyImageDelegate.ImageDrawable;
@@ -32,6 +38,8 @@ public class IntensifyImageView extends View implements IntensifyImage,
 
     private Paint mBoardPaint;
 
+    private Matrix mMatrix = new Matrix();
+
     private volatile Rect mDrawingRect = new Rect();
 
     private OverScroller mScroller;
@@ -46,6 +54,12 @@ public class IntensifyImageView extends View implements IntensifyImage,
 
     private OnScaleChangeListener mOnScaleChangeListener;
 
+    private List<OnViewportChangeListener> mOnViewportChangeListeners = new ArrayList<>();
+
+    private RectF mNotifiedArea = new RectF();
+
+    private Rect mNotifiedRect = new Rect();
+
     private volatile boolean vFling = false;
 
     private static final boolean DEBUG = false;
@@ -82,6 +96,30 @@ public class IntensifyImageView extends View implements IntensifyImage,
 
         mDelegate.setScale(a.getFloat(R.styleable.IntensifyImageView_scale, -1f));
 
+        mDelegate.setCachePolicy(CachePolicy.valueOf(
+                a.getInt(R.styleable.IntensifyImageView_cachePolicy, CachePolicy.LRU.nativeInt)));
+
+        mDelegate.setMotionIdleTime(a.getInt(
+                R.styleable.IntensifyImageView_motionIdleTime, (int) mDelegate.getMotionIdleTime()));
+
+        mDelegate.setDecayTime(a.getInt(
+                R.styleable.IntensifyImageView_decayTime, (int) mDelegate.getDecayTime()));
+
+        mDelegate.setPrefetchRing(a.getInt(
+                R.styleable.IntensifyImageView_prefetchRing, mDelegate.getPrefetchRing()));
+
+        mDelegate.setPredictivePrefetch(a.getBoolean(
+                R.styleable.IntensifyImageView_predictivePrefetch, mDelegate.isPredictivePrefetch()));
+
+        mDelegate.setLongImageMode(a.getBoolean(
+                R.styleable.IntensifyImageView_longImageMode, mDelegate.isLongImageMode()));
+
+        mDelegate.setRetainTiles(a.getBoolean(
+                R.styleable.IntensifyImageView_retainTiles, mDelegate.isRetainTiles()));
+
+        mDelegate.setShareTiles(a.getBoolean(
+                R.styleable.IntensifyImageView_shareTiles, mDelegate.isShareTiles()));
+
         a.recycle();
 
         mPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
@@ -112,23 +150,97 @@ public class IntensifyImageView extends View implements IntensifyImage,
 
     @Override
     protected void onDetachedFromWindow() {
-        mDelegate.onDetached();
+        mDelegate.onDetached(isChangingConfigurations());
         super.onDetachedFromWindow();
     }
 
+    private boolean isChangingConfigurations() {
+        Context context = getContext();
+        while (context instanceof ContextWrapper) {
+            if (context instanceof Activity) {
+                return ((Activity) context).isChangingConfigurations();
+            }
+            context = ((ContextWrapper) context).getBaseContext();
+        }
+        return false;
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        Parcelable superState = super.onSaveInstanceState();
+        if (!mDelegate.isReady()) return superState;
+
+        getDrawingRect(mDrawingRect);
+        RectF imageArea = mDelegate.getImageArea();
+        float scale = mDelegate.getScale();
+        SavedState state = new SavedState(superState);
+        state.source = mDelegate.getSourceKey();
+        state.scale = scale;
+        state.centerX = (mDrawingRect.centerX() - imageArea.left) / scale;
+        state.centerY = (mDrawingRect.centerY() - imageArea.top) / scale;
+        return state;
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (!(state instanceof SavedState)) {
+            super.onRestoreInstanceState(state);
+            return;
+        }
+        SavedState savedState = (SavedState) state;
+        super.onRestoreInstanceState(savedState.getSuperState());
+        mDelegate.restoreState(savedState.source, savedState.scale,
+                savedState.centerX, savedState.centerY);
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        // 布局中设置了android:visibility时，低版本在构造中就会回调，此时尚未初始化
+        if (mDelegate != null) {
+            mDelegate.setVisible(isShown() && getWindowVisibility() == VISIBLE);
+        }
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        if (mDelegate != null) {
+            mDelegate.setVisible(isShown() && visibility == VISIBLE);
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        getDrawingRect(mDrawingRect);
+        mDelegate.setViewport(mDrawingRect);
+    }
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+        getDrawingRect(mDrawingRect);
+        mDelegate.setViewport(mDrawingRect);
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
         getDrawingRect(mDrawingRect);
 
         List<ImageDrawable> drawables = mDelegate.obtainImageDrawables(mDrawingRect);
 
+        // 手势进行中降低过滤质量
+        mPaint.setFilterBitmap(!mDelegate.isInMotion());
+
         int save = canvas.save();
         int i = 0;
         for (ImageDrawable drawable : drawables) {
             if (drawable == null || drawable.mBitmap.isRecycled()) {
                 continue;
             }
-            canvas.drawBitmap(drawable.mBitmap, drawable.mSrc, drawable.mDst, mPaint);
+            Orientation.draw(canvas, drawable.mBitmap, drawable.mSrc, drawable.mDst,
+                    drawable.mOrientation, mMatrix, mPaint);
             if (DEBUG) {
                 canvas.drawRect(drawable.mDst, mPaint);
                 canvas.drawText(String.valueOf(++i), drawable.mDst.left + 4,
@@ -141,6 +253,23 @@ public class IntensifyImageView extends View implements IntensifyImage,
         }
 
         canvas.restoreToCount(save);
+
+        notifyViewportChange();
+    }
+
+    /**
+     * 绘制时图片位置或绘制区域有变化才通知
+     */
+    private void notifyViewportChange() {
+        if (mOnViewportChangeListeners.isEmpty() || !mDelegate.isReady()) return;
+        RectF imageArea = mDelegate.getImageArea();
+        if (mNotifiedArea.equals(imageArea) && mNotifiedRect.equals(mDrawingRect)) return;
+        mNotifiedArea.set(imageArea);
+        mNotifiedRect.set(mDrawingRect);
+        Rect region = mDelegate.getVisibleRegion(mDrawingRect);
+        for (OnViewportChangeListener listener : new ArrayList<>(mOnViewportChangeListeners)) {
+            listener.onViewportChange(region);
+        }
     }
 
     @Override
@@ -161,6 +290,106 @@ public class IntensifyImageView extends View implements IntensifyImage,
         mDelegate.load(inputStream);
     }
 
+    /**
+     * 通过自定义的图片源设置图片
+     *
+     * @param decoder 图片源
+     */
+    public void setImage(IntensifyImageDecoder decoder) {
+        mScroller.abortAnimation();
+        mDelegate.load(decoder);
+    }
+
+    /**
+     * 设置保留最近显示过的图片所用的内存，0表示不保留
+     *
+     * @param retainSize 字节数
+     */
+    public void setRetainSize(int retainSize) {
+        mDelegate.setRetainSize(retainSize);
+    }
+
+    public int getRetainSize() {
+        return mDelegate.getRetainSize();
+    }
+
+    /**
+     * 设置保留图片时是否连同已解码的块一起保留
+     *
+     * @param retainTiles 是否保留块
+     */
+    public void setRetainTiles(boolean retainTiles) {
+        mDelegate.setRetainTiles(retainTiles);
+    }
+
+    public boolean isRetainTiles() {
+        return mDelegate.isRetainTiles();
+    }
+
+    /**
+     * 设置是否与显示同一张图片的其他视图共享区域解码器和块，下次加载图片时生效
+     *
+     * @param shareTiles 是否共享
+     */
+    public void setShareTiles(boolean shareTiles) {
+        mDelegate.setShareTiles(shareTiles);
+    }
+
+    public boolean isShareTiles() {
+        return mDelegate.isShareTiles();
+    }
+
+    /**
+     * 创建当前图片的导出器，用于按任意缩放值导出原图中的区域
+     *
+     * @return 导出器，图片尚未完成布局时返回null
+     */
+    public IntensifyImageExporter newExporter() {
+        return mDelegate.newExporter();
+    }
+
+    /**
+     * @return 可见区域在原图中的位置
+     */
+    public Rect getVisibleRegion() {
+        getDrawingRect(mDrawingRect);
+        return mDelegate.getVisibleRegion(mDrawingRect);
+    }
+
+    /**
+     * 设置图片信息的索引，有记录时不等区域解码器打开就完成布局
+     *
+     * @param metadataIndex 索引，为null时不使用
+     */
+    public void setMetadataIndex(IntensifyMetadataIndex metadataIndex) {
+        mDelegate.setMetadataIndex(metadataIndex);
+    }
+
+    /**
+     * @return 当前图片记录的信息，没有时返回null
+     */
+    public IntensifyMetadataIndex.Metadata getMetadata() {
+        return mDelegate.getMetadata();
+    }
+
+    /**
+     * 设置保存每张图片最后位置的存储，加载图片时回到上次的缩放值和可见区域
+     *
+     * @param viewportStore 存储，为null时不保存也不恢复
+     */
+    public void setViewportStore(IntensifyViewportStore viewportStore) {
+        mDelegate.setViewportStore(viewportStore);
+    }
+
+    /**
+     * 设置预加载器，加载图片时优先使用其中已准备好的区域解码器和基础图
+     *
+     * @param preloader 预加载器，为null时不使用
+     */
+    public void setPreloader(IntensifyImagePreloader preloader) {
+        mDelegate.setPreloader(preloader);
+    }
+
     @Override
     public int getImageWidth() {
         return mDelegate.getWidth();
@@ -193,6 +422,7 @@ public class IntensifyImageView extends View implements IntensifyImage,
 
     @Override
     public void addScale(float scale, float focusX, float focusY) {
+        mDelegate.onMotion();
         mDelegate.scale(scale, focusX + getScrollX(), focusY + getScrollY());
         postInvalidate();
     }
@@ -202,12 +432,16 @@ public class IntensifyImageView extends View implements IntensifyImage,
         getDrawingRect(mDrawingRect);
         Point damping = mDelegate.damping(mDrawingRect, distanceX, distanceY);
         getParent().requestDisallowInterceptTouchEvent(damping.x != 0 || damping.y != 0);
+        if (damping.x != 0 || damping.y != 0) {
+            mDelegate.onMotion();
+        }
         scrollBy(damping.x, damping.y);
     }
 
     @Override
     public void computeScroll() {
         if (mScroller.computeScrollOffset()) {
+            mDelegate.onMotion();
             scrollTo(mScroller.getCurrX(), mScroller.getCurrY());
             postInvalidate();
         } else {
@@ -332,6 +566,42 @@ public class IntensifyImageView extends View implements IntensifyImage,
         mOnScaleChangeListener = listener;
     }
 
+    public void addOnViewportChangeListener(OnViewportChangeListener listener) {
+        if (!mOnViewportChangeListeners.contains(listener)) {
+            mOnViewportChangeListeners.add(listener);
+            mNotifiedRect.setEmpty();
+            invalidate();
+        }
+    }
+
+    public void removeOnViewportChangeListener(OnViewportChangeListener listener) {
+        mOnViewportChangeListeners.remove(listener);
+    }
+
+    /**
+     * 把原图中的点移到可见区域中心，不在手势中时目标位置的块在绘制前解码
+     *
+     * @param x 原图中的横坐标
+     * @param y 原图中的纵坐标
+     */
+    public void moveTo(float x, float y) {
+        getDrawingRect(mDrawingRect);
+        Point target = mDelegate.moveTo(mDrawingRect, x, y);
+        if (target == null) return;
+        mScroller.abortAnimation();
+        vFling = false;
+        scrollTo(target.x, target.y);
+        awakenScrollBars();
+    }
+
+    /**
+     * @param frame 显示区域
+     * @return 居中缩放到frame内的整张图片，尚未完成布局时返回null
+     */
+    ImageDrawable obtainOverviewDrawable(Rect frame) {
+        return mDelegate.obtainOverviewDrawable(frame);
+    }
+
     public float getBaseScale() {
         return mDelegate.getBaseScale();
     }
@@ -362,6 +632,97 @@ public class IntensifyImageView extends View implements IntensifyImage,
         return mDelegate.getMaximumScale();
     }
 
+    /**
+     * 设置块缓存的淘汰策略
+     *
+     * @param cachePolicy 淘汰策略
+     */
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        mDelegate.setCachePolicy(cachePolicy);
+    }
+
+    public CachePolicy getCachePolicy() {
+        return mDelegate.getCachePolicy();
+    }
+
+    /**
+     * 设置缓存大小，包括基础图和所有级别的块，默认为4屏ARGB_8888图像的大小
+     *
+     * @param cacheSize 缓存大小，单位字节
+     */
+    public void setCacheSize(int cacheSize) {
+        mDelegate.setCacheSize(cacheSize);
+    }
+
+    public int getCacheSize() {
+        return mDelegate.getCacheSize();
+    }
+
+    /**
+     * 设置手势静止多久后恢复高清解码
+     *
+     * @param idleTime 静止时间，单位毫秒
+     */
+    public void setMotionIdleTime(long idleTime) {
+        mDelegate.setMotionIdleTime(idleTime);
+    }
+
+    public long getMotionIdleTime() {
+        return mDelegate.getMotionIdleTime();
+    }
+
+    /**
+     * 设置空闲时在可见区域外预取的块的圈数
+     *
+     * @param ring 圈数，0表示不预取
+     */
+    public void setPrefetchRing(int ring) {
+        mDelegate.setPrefetchRing(ring);
+    }
+
+    public int getPrefetchRing() {
+        return mDelegate.getPrefetchRing();
+    }
+
+    /**
+     * 设置是否沿滑动方向预取前方的块
+     *
+     * @param predictive 是否预测
+     */
+    public void setPredictivePrefetch(boolean predictive) {
+        mDelegate.setPredictivePrefetch(predictive);
+    }
+
+    public boolean isPredictivePrefetch() {
+        return mDelegate.isPredictivePrefetch();
+    }
+
+    /**
+     * 设置长图是否按整宽(高)的条带解码，下次加载图片时生效
+     *
+     * @param longImageMode 是否启用长图模式
+     */
+    public void setLongImageMode(boolean longImageMode) {
+        mDelegate.setLongImageMode(longImageMode);
+    }
+
+    public boolean isLongImageMode() {
+        return mDelegate.isLongImageMode();
+    }
+
+    /**
+     * 设置空闲多久后回收不在屏幕上的块
+     *
+     * @param decayTime 空闲时间，单位毫秒，0表示不回收
+     */
+    public void setDecayTime(long decayTime) {
+        mDelegate.setDecayTime(decayTime);
+    }
+
+    public long getDecayTime() {
+        return mDelegate.getDecayTime();
+    }
+
     @Override
     public void onRequestInvalidate() {
         postInvalidate();
@@ -383,4 +744,47 @@ public class IntensifyImageView extends View implements IntensifyImage,
             });
         }
     }
+
+    /**
+     * 保存缩放值和可见区域中心在原图中的位置
+     */
+    static class SavedState extends BaseSavedState {
+        String source;
+        float scale;
+        float centerX;
+        float centerY;
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        private SavedState(Parcel in) {
+            super(in);
+            source = in.readString();
+            scale = in.readFloat();
+            centerX = in.readFloat();
+            centerY = in.readFloat();
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeString(source);
+            out.writeFloat(scale);
+            out.writeFloat(centerX);
+            out.writeFloat(centerY);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
+    }
 }
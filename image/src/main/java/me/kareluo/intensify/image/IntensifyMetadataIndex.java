@@ -0,0 +1,133 @@
+package me.kareluo.intensify.image;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+
+/**
+ * 持久化保存图片的尺寸、格式、是否不透明和是否为灰度图，再次加载同一张图片时
+ * 不用等区域解码器打开就能完成布局。图片按{@link IntensifyImageDecoder#getKey()}
+ * 的字符串形式区分，最多保存{@link #MAX_COUNT}张
+ */
+public class IntensifyMetadataIndex {
+
+    private static final String NAME = "intensify_metadata";
+
+    private static final int MAX_COUNT = 256;
+
+    private static final int GRAY_SAMPLES = 16;
+
+    private final SharedPreferences mPreferences;
+
+    public IntensifyMetadataIndex(Context context) {
+        mPreferences = context.getApplicationContext().getSharedPreferences(NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param key 图片源的标识
+     * @return 记录的信息，没有时返回null
+     */
+    public Metadata get(Object key) {
+        if (key == null) return null;
+        String value = mPreferences.getString(String.valueOf(key), null);
+        if (value == null) return null;
+        String[] values = value.split(",");
+        if (values.length != 6) return null;
+        try {
+            return new Metadata(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                    values[2].length() > 0 ? values[2] : null,
+                    Boolean.parseBoolean(values[3]), Boolean.parseBoolean(values[4]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 记录图片信息，是否不透明和是否为灰度图从基础图中判断
+     *
+     * @param key      图片源的标识
+     * @param width    原图宽度
+     * @param height   原图高度
+     * @param mimeType 格式，未知时为null
+     * @param base     基础图
+     */
+    void put(Object key, int width, int height, String mimeType, Bitmap base) {
+        if (key == null || width <= 0 || height <= 0 || base == null || base.isRecycled()) return;
+        mPreferences.edit().putString(String.valueOf(key), width + "," + height + ","
+                + (mimeType != null ? mimeType : "") + "," + !base.hasAlpha() + ","
+                + isGrayscale(base) + "," + System.currentTimeMillis()).apply();
+        Utils.trimEldest(mPreferences, MAX_COUNT);
+    }
+
+    public void remove(Object key) {
+        if (key == null) return;
+        mPreferences.edit().remove(String.valueOf(key)).apply();
+    }
+
+    public void clear() {
+        mPreferences.edit().clear().apply();
+    }
+
+    /**
+     * 在网格上取样判断是否每个像素的三个通道都相同
+     */
+    private static boolean isGrayscale(Bitmap bitmap) {
+        int width = bitmap.getWidth(), height = bitmap.getHeight();
+        for (int i = 0; i < GRAY_SAMPLES; i++) {
+            for (int j = 0; j < GRAY_SAMPLES; j++) {
+                int pixel = bitmap.getPixel(j * (width - 1) / (GRAY_SAMPLES - 1),
+                        i * (height - 1) / (GRAY_SAMPLES - 1));
+                int r = (pixel >> 16) & 0xFF, g = (pixel >> 8) & 0xFF, b = pixel & 0xFF;
+                if (r != g || g != b) return false;
+            }
+        }
+        return true;
+    }
+
+    public static class Metadata {
+        private final int mWidth;
+
+        private final int mHeight;
+
+        private final String mMimeType;
+
+        private final boolean mOpaque;
+
+        private final boolean mGrayscale;
+
+        Metadata(int width, int height, String mimeType, boolean opaque, boolean grayscale) {
+            mWidth = width;
+            mHeight = height;
+            mMimeType = mimeType;
+            mOpaque = opaque;
+            mGrayscale = grayscale;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return 格式，例如image/jpeg，未知时返回null
+         */
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        public boolean isOpaque() {
+            return mOpaque;
+        }
+
+        public boolean isGrayscale() {
+            return mGrayscale;
+        }
+
+        public boolean isPortrait() {
+            return mHeight > mWidth;
+        }
+    }
+}
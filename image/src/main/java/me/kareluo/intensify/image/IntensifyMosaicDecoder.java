@@ -0,0 +1,285 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 把按行列排列的多个文件作为一张图片：区域按所在的文件拆分后分别解码再拼接，
+ * 每个文件的解码器在第一次用到时打开，超出数量时关闭最久未用的，
+ * 空闲超过{@link #IDLE_TIME}的在下次解码时关闭，停止解码后由主线程定时关闭，正在解码时跳过，不等待
+ */
+public class IntensifyMosaicDecoder implements IntensifyImageDecoder {
+
+    private static final String TAG = "IntensifyMosaicDecoder";
+
+    private static final int MAX_OPEN = 4;
+
+    private static final long IDLE_TIME = 10000;
+
+    private final IntensifyImageDecoder[][] mParts;
+
+    private final int[] mColumnWidths;
+
+    private final int[] mRowHeights;
+
+    /**
+     * 每个文件大小相同
+     *
+     * @param parts      按行排列的文件
+     * @param partWidth  每个文件的宽度
+     * @param partHeight 每个文件的高度
+     */
+    public IntensifyMosaicDecoder(IntensifyImageDecoder[][] parts, int partWidth, int partHeight) {
+        this(parts, fill(parts.length > 0 ? parts[0].length : 0, partWidth), fill(parts.length, partHeight));
+    }
+
+    /**
+     * @param parts        按行排列的文件，每行的数量相同
+     * @param columnWidths 每列文件的宽度
+     * @param rowHeights   每行文件的高度
+     */
+    public IntensifyMosaicDecoder(IntensifyImageDecoder[][] parts, int[] columnWidths, int[] rowHeights) {
+        if (parts.length == 0 || parts.length != rowHeights.length) {
+            throw new IllegalArgumentException("rows mismatch");
+        }
+        for (IntensifyImageDecoder[] row : parts) {
+            if (row.length != columnWidths.length) {
+                throw new IllegalArgumentException("columns mismatch");
+            }
+        }
+        mParts = parts;
+        mColumnWidths = columnWidths.clone();
+        mRowHeights = rowHeights.clone();
+    }
+
+    private static int[] fill(int count, int size) {
+        int[] sizes = new int[count];
+        Arrays.fill(sizes, size);
+        return sizes;
+    }
+
+    @Override
+    public IntensifyRegionDecoder newRegionDecoder() throws IOException {
+        return new MosaicRegionDecoder();
+    }
+
+    /**
+     * @return 所有文件标识组成的列表，有文件无法标识时返回null
+     */
+    @Override
+    public Object getKey() {
+        List<Object> keys = new ArrayList<>();
+        for (IntensifyImageDecoder[] row : mParts) {
+            for (IntensifyImageDecoder part : row) {
+                Object key = part.getKey();
+                if (key == null) return null;
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public int getOrientation() {
+        return ExifInterface.ORIENTATION_NORMAL;
+    }
+
+    /**
+     * 同一时间只解码一个区域，被关闭的解码器不会正在使用
+     */
+    private class MosaicRegionDecoder implements IntensifyRegionDecoder {
+
+        private final ReentrantLock mLock = new ReentrantLock();
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        private final Runnable mCloseIdle = new Runnable() {
+            @Override
+            public void run() {
+                // 正在解码时跳过，解码结束后会重新安排
+                if (!mLock.tryLock()) return;
+                try {
+                    if (!mRecycled) closeIdle();
+                } finally {
+                    mLock.unlock();
+                }
+            }
+        };
+
+        private final int[] mLefts = new int[mColumnWidths.length + 1];
+
+        private final int[] mTops = new int[mRowHeights.length + 1];
+
+        private final PartCache mOpened = new PartCache(MAX_OPEN);
+
+        private final Map<Point, Long> mUsed = new HashMap<>();
+
+        private volatile boolean mRecycled = false;
+
+        MosaicRegionDecoder() {
+            for (int i = 0; i < mColumnWidths.length; i++) {
+                mLefts[i + 1] = mLefts[i] + mColumnWidths[i];
+            }
+            for (int i = 0; i < mRowHeights.length; i++) {
+                mTops[i + 1] = mTops[i] + mRowHeights[i];
+            }
+        }
+
+        @Override
+        public int getWidth() {
+            return mLefts[mColumnWidths.length];
+        }
+
+        @Override
+        public int getHeight() {
+            return mTops[mRowHeights.length];
+        }
+
+        @Override
+        public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+            mLock.lock();
+            try {
+                return decode(rect, options);
+            } finally {
+                mLock.unlock();
+                mHandler.removeCallbacks(mCloseIdle);
+                if (!mRecycled) {
+                    mHandler.postDelayed(mCloseIdle, IDLE_TIME + 1);
+                }
+            }
+        }
+
+        private Bitmap decode(Rect rect, BitmapFactory.Options options) {
+            if (mRecycled) {
+                throw new IllegalStateException("decodeRegion called on a recycled decoder");
+            }
+            closeIdle();
+            Rect region = new Rect(rect);
+            if (!region.intersect(0, 0, getWidth(), getHeight())) return null;
+            int sampleSize = Math.max(options != null ? options.inSampleSize : 1, 1);
+
+            Bitmap result = null;
+            Canvas canvas = null;
+            int rows = mRowHeights.length, columns = mColumnWidths.length;
+            for (int i = indexOf(mTops, region.top); i < rows && mTops[i] < region.bottom; i++) {
+                for (int j = indexOf(mLefts, region.left); j < columns && mLefts[j] < region.right; j++) {
+                    Rect part = new Rect(mLefts[j], mTops[i], mLefts[j + 1], mTops[i + 1]);
+                    if (!part.intersect(region)) continue;
+                    boolean whole = part.equals(region);
+                    Bitmap bitmap = decodePart(i, j, part, options);
+                    if (bitmap == null) continue;
+                    if (whole) return bitmap;
+
+                    if (result == null) {
+                        Bitmap.Config config = bitmap.getConfig();
+                        result = Bitmap.createBitmap(Utils.ceil(1f * region.width() / sampleSize),
+                                Utils.ceil(1f * region.height() / sampleSize),
+                                config != null ? config : Bitmap.Config.ARGB_8888);
+                        canvas = new Canvas(result);
+                    }
+                    RectF dst = new RectF(1f * (part.left - region.left) / sampleSize,
+                            1f * (part.top - region.top) / sampleSize,
+                            1f * (part.right - region.left) / sampleSize,
+                            1f * (part.bottom - region.top) / sampleSize);
+                    canvas.drawBitmap(bitmap, null, dst, null);
+                    bitmap.recycle();
+                }
+            }
+            return result;
+        }
+
+        /**
+         * 解码一个文件中的区域
+         *
+         * @param part 区域，在整张图片中的坐标
+         */
+        private Bitmap decodePart(int row, int column, Rect part, BitmapFactory.Options options) {
+            Point key = new Point(column, row);
+            IntensifyRegionDecoder decoder = mOpened.createGet(key);
+            mUsed.put(key, SystemClock.uptimeMillis());
+            if (decoder == null) return null;
+            Rect local = new Rect(part);
+            local.offset(-mLefts[column], -mTops[row]);
+            return decoder.decodeRegion(local, options);
+        }
+
+        /**
+         * 关闭空闲超过{@link #IDLE_TIME}的文件，持有锁时调用
+         */
+        private void closeIdle() {
+            long now = SystemClock.uptimeMillis();
+            for (Point key : mOpened.snapshot().keySet()) {
+                Long used = mUsed.get(key);
+                if (used == null || now - used > IDLE_TIME) {
+                    mOpened.remove(key);
+                    mUsed.remove(key);
+                }
+            }
+        }
+
+        /**
+         * @return 包含value的区间，sums为各区间的起点
+         */
+        private int indexOf(int[] sums, int value) {
+            int index = Arrays.binarySearch(sums, value);
+            return index >= 0 ? index : -index - 2;
+        }
+
+        @Override
+        public void recycle() {
+            mLock.lock();
+            try {
+                mRecycled = true;
+                mOpened.evictAll();
+                mUsed.clear();
+            } finally {
+                mLock.unlock();
+            }
+            mHandler.removeCallbacks(mCloseIdle);
+        }
+
+        @Override
+        public boolean isRecycled() {
+            return mRecycled;
+        }
+    }
+
+    private class PartCache extends IntensifyCache<Point, IntensifyRegionDecoder, Void> {
+
+        PartCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected IntensifyRegionDecoder create(Point key) {
+            try {
+                return mParts[key.y][key.x].newRegionDecoder();
+            } catch (IOException e) {
+                Logger.w(TAG, e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Point key, IntensifyRegionDecoder oldValue,
+                                    IntensifyRegionDecoder newValue) {
+            if (oldValue != null) oldValue.recycle();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package me.kareluo.intensify.image;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+import me.kareluo.intensify.image.IntensifyImageDelegate.ImageDrawable;
+
+/**
+ * 整张图片的缩略导航：直接绘制{@link IntensifyImageView}已有的基础图，标出可见区域，
+ * 点击或拖动时把对应位置移到可见区域中心
+ */
+public class IntensifyNavigatorView extends View implements IntensifyImage.OnViewportChangeListener {
+
+    private Paint mPaint;
+
+    private Paint mViewportPaint;
+
+    private Matrix mMatrix = new Matrix();
+
+    private Rect mFrame = new Rect();
+
+    private Rect mImageRect = new Rect();
+
+    private Rect mRegion = new Rect();
+
+    private Rect mViewport = new Rect();
+
+    private IntensifyImageView mImageView;
+
+    private boolean mAttached = false;
+
+    public IntensifyNavigatorView(Context context) {
+        this(context, null, 0);
+    }
+
+    public IntensifyNavigatorView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public IntensifyNavigatorView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        initialize(context, attrs, defStyleAttr);
+    }
+
+    protected void initialize(Context context, AttributeSet attrs, int defStyleAttr) {
+        mPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+
+        mViewportPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mViewportPaint.setColor(Color.RED);
+        mViewportPaint.setStrokeWidth(2f * getResources().getDisplayMetrics().density);
+        mViewportPaint.setStyle(Paint.Style.STROKE);
+    }
+
+    /**
+     * @param imageView 导航的视图，为null时解除
+     */
+    public void setImageView(IntensifyImageView imageView) {
+        if (mImageView == imageView) return;
+        if (mImageView != null) {
+            mImageView.removeOnViewportChangeListener(this);
+        }
+        mImageView = imageView;
+        mRegion.setEmpty();
+        if (mImageView != null && mAttached) {
+            mImageView.addOnViewportChangeListener(this);
+        }
+        invalidate();
+    }
+
+    public IntensifyImageView getImageView() {
+        return mImageView;
+    }
+
+    public void setViewportColor(int color) {
+        mViewportPaint.setColor(color);
+        invalidate();
+    }
+
+    public void setViewportWidth(float width) {
+        mViewportPaint.setStrokeWidth(width);
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mAttached = true;
+        if (mImageView != null) {
+            mImageView.addOnViewportChangeListener(this);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        mAttached = false;
+        if (mImageView != null) {
+            mImageView.removeOnViewportChangeListener(this);
+        }
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    public void onViewportChange(Rect region) {
+        mRegion.set(region);
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        mImageRect.setEmpty();
+        if (mImageView == null) return;
+        mFrame.set(getPaddingLeft(), getPaddingTop(),
+                getWidth() - getPaddingRight(), getHeight() - getPaddingBottom());
+        ImageDrawable drawable = mImageView.obtainOverviewDrawable(mFrame);
+        if (drawable == null || drawable.mBitmap.isRecycled()) return;
+        mImageRect.set(drawable.mDst);
+        Orientation.draw(canvas, drawable.mBitmap, drawable.mSrc, drawable.mDst,
+                drawable.mOrientation, mMatrix, mPaint);
+
+        int width = mImageView.getImageWidth(), height = mImageView.getImageHeight();
+        if (mRegion.isEmpty() || width <= 0 || height <= 0) return;
+        float scaleX = 1f * mImageRect.width() / width, scaleY = 1f * mImageRect.height() / height;
+        mViewport.set(mImageRect.left + Math.round(mRegion.left * scaleX),
+                mImageRect.top + Math.round(mRegion.top * scaleY),
+                mImageRect.left + Math.round(mRegion.right * scaleX),
+                mImageRect.top + Math.round(mRegion.bottom * scaleY));
+        canvas.drawRect(mViewport, mViewportPaint);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (mImageView == null || mImageRect.isEmpty()) return super.onTouchEvent(event);
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                getParent().requestDisallowInterceptTouchEvent(true);
+                // fall through
+            case MotionEvent.ACTION_MOVE:
+                float x = Math.max(mImageRect.left, Math.min(event.getX(), mImageRect.right));
+                float y = Math.max(mImageRect.top, Math.min(event.getY(), mImageRect.bottom));
+                mImageView.moveTo((x - mImageRect.left) * mImageView.getImageWidth() / mImageRect.width(),
+                        (y - mImageRect.top) * mImageView.getImageHeight() / mImageRect.height());
+                return true;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                getParent().requestDisallowInterceptTouchEvent(false);
+                return true;
+        }
+        return true;
+    }
+}
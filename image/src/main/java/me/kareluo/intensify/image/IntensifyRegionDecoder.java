@@ -0,0 +1,27 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+/**
+ * 按区域解码图片，与{@link android.graphics.BitmapRegionDecoder}的用法相同，
+ * 可以由多个文件组成一张图片
+ */
+public interface IntensifyRegionDecoder {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * @param rect    原图中的区域
+     * @param options 解码参数，inSampleSize为采样率
+     * @return 解码的图片，失败或被取消时返回null
+     */
+    Bitmap decodeRegion(Rect rect, BitmapFactory.Options options);
+
+    void recycle();
+
+    boolean isRecycled();
+}
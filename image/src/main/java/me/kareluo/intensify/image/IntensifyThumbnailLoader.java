@@ -0,0 +1,355 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory.Options;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 批量生成缩略图：只读取尺寸后按目标大小选择采样率，在有限的线程上按优先级解码，
+ * 结果缓存在{@link IntensifyCache}中并受内存上限约束，同一张图片同时只解码一次。
+ * 缓存移除的缩略图不会被回收，仍可能被调用者显示
+ */
+public class IntensifyThumbnailLoader {
+
+    private static final String TAG = "IntensifyThumbnailLoader";
+
+    private final ThumbnailCache mCache;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final Map<ThumbnailKey, Pending> mPendings = new HashMap<>();
+
+    private static final int MAX_THREADS = 4;
+
+    /**
+     * @param maxSize 缩略图占用的内存上限，单位字节
+     */
+    public IntensifyThumbnailLoader(int maxSize) {
+        this(maxSize, Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS)));
+    }
+
+    /**
+     * @param maxSize 缩略图占用的内存上限，单位字节
+     * @param threads 并行解码的线程数
+     */
+    public IntensifyThumbnailLoader(int maxSize, int threads) {
+        mCache = new ThumbnailCache(maxSize);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+    }
+
+    /**
+     * 请求缩略图，已缓存时立即在当前线程回调
+     *
+     * @param decoder  图片源，需要{@link IntensifyImageDecoder#getKey()}
+     * @param size     缩略图短边不小于此值
+     * @param priority 优先级，越大越先解码
+     * @param callback 在主线程回调
+     * @return 请求，可以取消；已缓存时返回null
+     */
+    public Request load(IntensifyImageDecoder decoder, int size, int priority, Callback callback) {
+        ThumbnailKey key = new ThumbnailKey(decoder, size);
+        Bitmap bitmap = mCache.justGet(key);
+        if (bitmap != null) {
+            callback.onThumbnail(decoder.getKey(), bitmap);
+            return null;
+        }
+        acquire(key);
+        Request request = new Request(key, priority, mSequence.getAndIncrement(), callback);
+        mExecutor.execute(request);
+        return request;
+    }
+
+    /**
+     * @return 已缓存的缩略图，没有时返回null
+     */
+    public Bitmap get(IntensifyImageDecoder decoder, int size) {
+        return mCache.justGet(new ThumbnailKey(decoder, size));
+    }
+
+    /**
+     * 取消所有等待中的请求
+     */
+    public void cancelAll() {
+        for (Runnable runnable : mExecutor.getQueue().toArray(new Runnable[0])) {
+            if (runnable instanceof Request) {
+                ((Request) runnable).cancel();
+            }
+        }
+    }
+
+    public void clear() {
+        cancelAll();
+        mCache.evictAll();
+    }
+
+    /**
+     * 取消全部请求并结束线程，之后不能再使用
+     */
+    public void shutdown() {
+        cancelAll();
+        mExecutor.shutdownNow();
+        mCache.evictAll();
+    }
+
+    /**
+     * 同一张缩略图的请求共用一个{@link Pending}，记录未结束的请求数
+     */
+    private void acquire(ThumbnailKey key) {
+        synchronized (mPendings) {
+            Pending pending = mPendings.get(key);
+            if (pending == null) {
+                pending = new Pending();
+                mPendings.put(key, pending);
+            }
+            pending.mRequests++;
+            key.mPending = pending;
+        }
+    }
+
+    /**
+     * 请求结束，最后一个请求被取消时才中断正在进行的解码
+     *
+     * @param abort 是否因取消而结束
+     */
+    private void release(ThumbnailKey key, boolean abort) {
+        synchronized (mPendings) {
+            Pending pending = key.mPending;
+            if (--pending.mRequests > 0) return;
+            if (pending.mOptions != null) {
+                if (abort) {
+                    pending.mAborted = true;
+                    pending.mOptions.requestCancelDecode();
+                }
+            } else if (mPendings.get(key) == pending) {
+                mPendings.remove(key);
+            }
+        }
+    }
+
+    /**
+     * 开始解码
+     *
+     * @return 解码使用的参数，已没有等待的请求时返回null
+     */
+    private Options begin(ThumbnailKey key, int sampleSize) {
+        synchronized (mPendings) {
+            Pending pending = key.mPending;
+            if (pending.mRequests <= 0) return null;
+            Options options = new Options();
+            options.inSampleSize = sampleSize;
+            pending.mOptions = options;
+            pending.mAborted = false;
+            return options;
+        }
+    }
+
+    /**
+     * 结束解码
+     *
+     * @return 解码被中断后又有新的请求在等待，需要重新解码
+     */
+    private boolean end(ThumbnailKey key) {
+        synchronized (mPendings) {
+            Pending pending = key.mPending;
+            pending.mOptions = null;
+            boolean retry = pending.mAborted && pending.mRequests > 0;
+            pending.mAborted = false;
+            if (pending.mRequests <= 0 && mPendings.get(key) == pending) {
+                mPendings.remove(key);
+            }
+            return retry;
+        }
+    }
+
+    /**
+     * 目标短边不小于size的最大采样率
+     */
+    static int getThumbnailSampleSize(int width, int height, int size) {
+        int sampleSize = 1;
+        while (Math.min(width, height) / (sampleSize << 1) >= size) {
+            sampleSize <<= 1;
+        }
+        return sampleSize;
+    }
+
+    public interface Callback {
+        /**
+         * @param key       图片源的标识
+         * @param thumbnail 缩略图，解码失败时为null
+         */
+        void onThumbnail(Object key, Bitmap thumbnail);
+    }
+
+    public class Request implements Runnable, Comparable<Request> {
+        private final ThumbnailKey mKey;
+
+        private final int mPriority;
+
+        private final long mSequence;
+
+        private final Callback mCallback;
+
+        private volatile boolean mCancelled = false;
+
+        private boolean mReleased = false;
+
+        private Request(ThumbnailKey key, int priority, long sequence, Callback callback) {
+            mKey = key;
+            mPriority = priority;
+            mSequence = sequence;
+            mCallback = callback;
+        }
+
+        /**
+         * 取消请求，不再回调；同一张缩略图没有其他请求时中断解码
+         */
+        public void cancel() {
+            mCancelled = true;
+            mExecutor.remove(this);
+            finish(true);
+        }
+
+        private void finish(boolean abort) {
+            synchronized (this) {
+                if (mReleased) return;
+                mReleased = true;
+            }
+            release(mKey, abort);
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) return;
+            final Bitmap bitmap;
+            try {
+                bitmap = mCache.createGet(mKey);
+            } finally {
+                finish(false);
+            }
+            if (mCancelled) return;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        mCallback.onThumbnail(mKey.mSource, bitmap);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(Request another) {
+            if (mPriority != another.mPriority) {
+                return mPriority > another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * 图片源和目标大小相同的请求共用一张缩略图
+     */
+    private static class ThumbnailKey {
+        final Object mSource;
+
+        final int mSize;
+
+        final IntensifyImageDecoder mDecoder;
+
+        Pending mPending;
+
+        ThumbnailKey(IntensifyImageDecoder decoder, int size) {
+            mSource = Utils.requireNonNull(decoder.getKey());
+            mSize = size;
+            mDecoder = decoder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ThumbnailKey)) return false;
+            ThumbnailKey that = (ThumbnailKey) o;
+            return mSize == that.mSize && mSource.equals(that.mSource);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mSource.hashCode() + mSize;
+        }
+    }
+
+    /**
+     * 同一张缩略图未结束的请求和正在进行的解码，由{@link #mPendings}同步
+     */
+    private static class Pending {
+        int mRequests;
+
+        Options mOptions;
+
+        boolean mAborted;
+    }
+
+    private class ThumbnailCache extends IntensifyCache<ThumbnailKey, Bitmap, Void> {
+
+        ThumbnailCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected Bitmap create(ThumbnailKey key) {
+            IntensifyRegionDecoder region;
+            try {
+                region = Orientation.open(key.mDecoder);
+            } catch (IOException e) {
+                Logger.w(TAG, e);
+                return null;
+            }
+            try {
+                int width = region.getWidth(), height = region.getHeight();
+                int sampleSize = getThumbnailSampleSize(width, height, key.mSize);
+                // 等待同一解码的请求都被取消时解码被中断，中断后又有新请求加入则重新解码
+                while (true) {
+                    Options options = begin(key, sampleSize);
+                    if (options == null) return null;
+                    Bitmap bitmap;
+                    boolean retry;
+                    try {
+                        bitmap = region.decodeRegion(new Rect(0, 0, width, height), options);
+                    } finally {
+                        retry = end(key);
+                    }
+                    if (bitmap == null && retry) continue;
+                    // 缩略图直接交给调用者显示，复制为显示方向
+                    return Orientation.rotate(bitmap, Orientation.of(region));
+                }
+            } finally {
+                region.recycle();
+            }
+        }
+
+        @Override
+        protected int sizeOf(ThumbnailKey key, Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+    }
+}
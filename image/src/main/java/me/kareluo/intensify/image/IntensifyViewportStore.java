@@ -0,0 +1,67 @@
+package me.kareluo.intensify.image;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * 持久化保存每张图片最后的缩放值和可见区域，再次打开同一张图片时回到上次的位置。
+ * 图片按{@link IntensifyImageDecoder#getKey()}的字符串形式区分，最多保存{@link #MAX_COUNT}张
+ */
+public class IntensifyViewportStore {
+
+    private static final String NAME = "intensify_viewport";
+
+    private static final int MAX_COUNT = 64;
+
+    private final SharedPreferences mPreferences;
+
+    public IntensifyViewportStore(Context context) {
+        mPreferences = context.getApplicationContext().getSharedPreferences(NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * 保存图片的缩放值和可见区域
+     *
+     * @param key     图片源的标识
+     * @param scale   缩放值
+     * @param centerX 可见区域中心在原图中的横坐标
+     * @param centerY 可见区域中心在原图中的纵坐标
+     */
+    public void save(Object key, float scale, float centerX, float centerY) {
+        if (key == null || scale <= 0) return;
+        mPreferences.edit().putString(String.valueOf(key), scale + "," + centerX + ","
+                + centerY + "," + System.currentTimeMillis()).apply();
+        Utils.trimEldest(mPreferences, MAX_COUNT);
+    }
+
+    /**
+     * @param key 图片源的标识
+     * @return 缩放值和可见区域中心在原图中的位置，没有时返回null
+     */
+    float[] load(Object key) {
+        if (key == null) return null;
+        String[] values = parse(mPreferences.getString(String.valueOf(key), null));
+        if (values == null) return null;
+        try {
+            return new float[]{Float.parseFloat(values[0]),
+                    Float.parseFloat(values[1]), Float.parseFloat(values[2])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public void remove(Object key) {
+        if (key == null) return;
+        mPreferences.edit().remove(String.valueOf(key)).apply();
+    }
+
+    public void clear() {
+        mPreferences.edit().clear().apply();
+    }
+
+    private static String[] parse(String value) {
+        if (value == null) return null;
+        String[] values = value.split(",");
+        return values.length == 4 ? values : null;
+    }
+}
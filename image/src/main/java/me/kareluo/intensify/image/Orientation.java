@@ -0,0 +1,207 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+
+import java.io.IOException;
+
+/**
+ * EXIF方向在块坐标中的处理：块按显示方向的坐标规划，解码前换算为原图中的区域，
+ * 解码出的图片保持原方向，绘制时再旋转或翻转，不额外复制像素
+ */
+class Orientation {
+
+    private Orientation() {
+
+    }
+
+    /**
+     * 打开图片源，有方向时包装为按显示方向解码的解码器
+     */
+    static IntensifyRegionDecoder open(IntensifyImageDecoder decoder) throws IOException {
+        IntensifyRegionDecoder region = decoder.newRegionDecoder();
+        int orientation = decoder.getOrientation();
+        if (orientation <= ExifInterface.ORIENTATION_NORMAL
+                || orientation > ExifInterface.ORIENTATION_ROTATE_270) {
+            return region;
+        }
+        return new OrientedRegionDecoder(region, orientation);
+    }
+
+    /**
+     * @return 解码器的方向，没有方向时返回{@link ExifInterface#ORIENTATION_NORMAL}
+     */
+    static int of(IntensifyRegionDecoder decoder) {
+        return decoder instanceof OrientedRegionDecoder
+                ? ((OrientedRegionDecoder) decoder).mOrientation : ExifInterface.ORIENTATION_NORMAL;
+    }
+
+    /**
+     * 读取文件的方向，失败时返回{@link ExifInterface#ORIENTATION_NORMAL}
+     */
+    static int read(String path) {
+        try {
+            return new ExifInterface(path).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * @return 是否交换宽高
+     */
+    static boolean isTransposed(int orientation) {
+        return orientation >= ExifInterface.ORIENTATION_TRANSPOSE
+                && orientation <= ExifInterface.ORIENTATION_ROTATE_270;
+    }
+
+    /**
+     * 把显示方向中的区域换算为原图中的区域
+     *
+     * @param rect   显示方向中的区域
+     * @param width  原图宽度
+     * @param height 原图高度
+     */
+    static Rect toSource(Rect rect, int orientation, int width, int height) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                return new Rect(width - rect.right, rect.top, width - rect.left, rect.bottom);
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return new Rect(width - rect.right, height - rect.bottom, width - rect.left, height - rect.top);
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                return new Rect(rect.left, height - rect.bottom, rect.right, height - rect.top);
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                return new Rect(rect.top, rect.left, rect.bottom, rect.right);
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return new Rect(rect.top, height - rect.right, rect.bottom, height - rect.left);
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                return new Rect(width - rect.bottom, height - rect.right, width - rect.top, height - rect.left);
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return new Rect(width - rect.bottom, rect.left, width - rect.top, rect.right);
+            default:
+                return new Rect(rect);
+        }
+    }
+
+    /**
+     * 设置把原方向的width * height区域变换到显示方向的矩阵
+     */
+    static void setMatrix(Matrix matrix, int orientation, int width, int height) {
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                matrix.postTranslate(width, 0);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                matrix.postTranslate(width, height);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                matrix.postTranslate(0, height);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setScale(1, -1);
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                matrix.postTranslate(height, 0);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setScale(-1, 1);
+                matrix.postRotate(90);
+                matrix.postTranslate(height, width);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(270);
+                matrix.postTranslate(0, width);
+                break;
+            default:
+                matrix.reset();
+                break;
+        }
+    }
+
+    /**
+     * 把图片中的src按方向绘制到dst
+     *
+     * @param matrix 复用的矩阵
+     */
+    static void draw(Canvas canvas, Bitmap bitmap, Rect src, Rect dst, int orientation,
+                     Matrix matrix, Paint paint) {
+        if (orientation <= ExifInterface.ORIENTATION_NORMAL) {
+            canvas.drawBitmap(bitmap, src, dst, paint);
+            return;
+        }
+        boolean transposed = isTransposed(orientation);
+        int width = src.width(), height = src.height();
+        setMatrix(matrix, orientation, width, height);
+        matrix.preTranslate(-src.left, -src.top);
+        matrix.postScale(1f * dst.width() / (transposed ? height : width),
+                1f * dst.height() / (transposed ? width : height));
+        matrix.postTranslate(dst.left, dst.top);
+        int save = canvas.save();
+        canvas.clipRect(dst);
+        canvas.drawBitmap(bitmap, matrix, paint);
+        canvas.restoreToCount(save);
+    }
+
+    /**
+     * 复制为显示方向的图片，只用于小图
+     */
+    static Bitmap rotate(Bitmap bitmap, int orientation) {
+        if (bitmap == null || orientation <= ExifInterface.ORIENTATION_NORMAL) return bitmap;
+        Matrix matrix = new Matrix();
+        setMatrix(matrix, orientation, bitmap.getWidth(), bitmap.getHeight());
+        Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (rotated != bitmap) bitmap.recycle();
+        return rotated;
+    }
+
+    /**
+     * 按显示方向的坐标解码，解码出的图片保持原方向
+     */
+    private static class OrientedRegionDecoder implements IntensifyRegionDecoder {
+        private final IntensifyRegionDecoder mDecoder;
+
+        private final int mOrientation;
+
+        OrientedRegionDecoder(IntensifyRegionDecoder decoder, int orientation) {
+            mDecoder = decoder;
+            mOrientation = orientation;
+        }
+
+        @Override
+        public int getWidth() {
+            return isTransposed(mOrientation) ? mDecoder.getHeight() : mDecoder.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return isTransposed(mOrientation) ? mDecoder.getWidth() : mDecoder.getHeight();
+        }
+
+        @Override
+        public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+            return mDecoder.decodeRegion(toSource(rect, mOrientation,
+                    mDecoder.getWidth(), mDecoder.getHeight()), options);
+        }
+
+        @Override
+        public void recycle() {
+            mDecoder.recycle();
+        }
+
+        @Override
+        public boolean isRecycled() {
+            return mDecoder.isRecycled();
+        }
+    }
+}
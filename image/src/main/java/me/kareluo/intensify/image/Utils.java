@@ -1,8 +1,11 @@
 package me.kareluo.intensify.image;
 
+import android.content.SharedPreferences;
 import android.graphics.Rect;
 import android.graphics.RectF;
 
+import java.util.Map;
+
 /**
  * Created by felix on 16/1/16.
  */
@@ -152,4 +155,32 @@ class Utils {
     public static boolean outRange(float v, float min, float max) {
         return v <= min || v >= max;
     }
+
+    /**
+     * 超出数量时移除最早保存的一项，每项的值以逗号分隔，最后一项为保存时间，无法解析的最先移除
+     *
+     * @param preferences 保存的记录
+     * @param maxCount    最多保存的数量
+     */
+    public static void trimEldest(SharedPreferences preferences, int maxCount) {
+        Map<String, ?> all = preferences.getAll();
+        if (all.size() <= maxCount) return;
+        String eldest = null;
+        long eldestTime = Long.MAX_VALUE;
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            String value = String.valueOf(entry.getValue());
+            long time = 0;
+            try {
+                time = Long.parseLong(value.substring(value.lastIndexOf(',') + 1));
+            } catch (NumberFormatException ignored) {
+            }
+            if (time < eldestTime) {
+                eldestTime = time;
+                eldest = entry.getKey();
+            }
+        }
+        if (eldest != null) {
+            preferences.edit().remove(eldest).apply();
+        }
+    }
 }
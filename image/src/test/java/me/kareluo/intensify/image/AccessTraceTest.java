@@ -0,0 +1,71 @@
+package me.kareluo.intensify.image;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AccessTraceTest {
+
+    @Test
+    public void replayCountsHits() throws Exception {
+        AccessTrace<Integer> trace = new AccessTrace<>(16);
+        for (int key : new int[]{1, 2, 1, 3, 1}) {
+            trace.record(key);
+        }
+        assertEquals(0.4f, trace.replay(null, 10), 1e-6f);
+    }
+
+    @Test
+    public void replayUsesRecordedSizes() throws Exception {
+        AccessTrace<Integer> trace = new AccessTrace<>(16);
+        trace.recordSize(1, 5);
+        trace.recordSize(2, 5);
+        for (int key : new int[]{1, 2, 1}) {
+            trace.record(key);
+        }
+        // only one entry fits, 2 pushes 1 out
+        assertEquals(0f, trace.replay(null, 5), 1e-6f);
+        assertEquals(1f / 3, trace.replay(null, 10), 1e-6f);
+    }
+
+    @Test
+    public void dropsLookupsBeyondCapacity() throws Exception {
+        AccessTrace<Integer> trace = new AccessTrace<>(3);
+        for (int i = 0; i < 5; i++) {
+            trace.record(i);
+        }
+        assertEquals(3, trace.size());
+    }
+
+    @Test
+    public void recordsLookupsOfCache() throws Exception {
+        AccessTrace<Integer> trace = new AccessTrace<>(16);
+        IntensifyCache<Integer, Integer, Void> cache = new IntensifyCache<>(10);
+        cache.setAccessTrace(trace);
+        cache.put(1, 1);
+        cache.justGet(1);
+        cache.justGet(2);
+        cache.setAccessTrace(null);
+        cache.justGet(3);
+        assertEquals(2, trace.size());
+    }
+
+    /**
+     * The trace quoted when FrequencyPolicy was added: 60% of the lookups go to
+     * 100 hot keys, 40% to keys never seen again, replayed on 170 entries.
+     */
+    @Test
+    public void frequencyBeatsLruOnScans() throws Exception {
+        AccessTrace<Integer> trace = new AccessTrace<>(20000);
+        Random random = new Random(42);
+        int scan = 1000000;
+        for (int i = 0; i < 20000; i++) {
+            trace.record(random.nextFloat() < 0.6f ? random.nextInt(100) : scan++);
+        }
+        assertEquals(0.45f, trace.replay(null, 170), 0.01f);
+        assertEquals(0.60f, trace.replay(new FrequencyPolicy<Integer>(), 170), 0.01f);
+        assertEquals("LRU=45%,Frequency=60%", trace.compare(170));
+    }
+}
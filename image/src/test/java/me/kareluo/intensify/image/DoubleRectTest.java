@@ -0,0 +1,92 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Rect;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class DoubleRectTest {
+
+    private DoubleRect mArea;
+
+    @Before
+    public void setUp() throws Exception {
+        mArea = new DoubleRect();
+        mArea.left = 100;
+        mArea.top = 50;
+        mArea.right = 1100;
+        mArea.bottom = 550;
+    }
+
+    @Test
+    public void toImageClipsToArea() throws Exception {
+        assertEquals(new Rect(0, 0, 1000, 700), mArea.toImage(new Rect(0, 0, 600, 400), 0.5));
+        assertEquals(new Rect(100, 100, 200, 200), mArea.toImage(new Rect(150, 100, 200, 150), 0.5));
+    }
+
+    @Test
+    public void toImageOutsideAreaIsEmpty() throws Exception {
+        assertTrue(mArea.toImage(new Rect(0, 0, 100, 50), 0.5).isEmpty());
+        assertTrue(mArea.toImage(new Rect(1100, 0, 1200, 600), 0.5).isEmpty());
+    }
+
+    @Test
+    public void toViewEdgesOfAdjacentBlocksMeet() throws Exception {
+        mArea.offset(0.3, 0.7);
+        double scale = 1 / 3.0;
+        Rect first = mArea.toView(new Rect(0, 0, 100, 100), scale);
+        Rect second = mArea.toView(new Rect(100, 100, 200, 200), scale);
+        assertEquals(first.right, second.left);
+        assertEquals(first.bottom, second.top);
+    }
+
+    @Test
+    public void scaleKeepsFocus() throws Exception {
+        double focusX = 300, focusY = 200;
+        double fractionX = (focusX - mArea.left) / mArea.width();
+        double fractionY = (focusY - mArea.top) / mArea.height();
+        for (int i = 0; i < 1000; i++) {
+            mArea.scale(1.01, focusX, focusY);
+        }
+        assertEquals(fractionX, (focusX - mArea.left) / mArea.width(), 1e-12);
+        assertEquals(fractionY, (focusY - mArea.top) / mArea.height(), 1e-12);
+    }
+
+    @Test
+    public void homeCentersSmallerSide() throws Exception {
+        mArea.home(new Rect(0, 0, 800, 800));
+        assertEquals(0, mArea.left, 0);
+        assertEquals(1000, mArea.right, 0);
+        assertEquals(150, mArea.top, 0);
+        assertEquals(650, mArea.bottom, 0);
+    }
+
+    @Test
+    public void homeRemovesGap() throws Exception {
+        mArea.home(new Rect(0, 0, 1200, 400));
+        assertEquals(100, mArea.left, 0);
+        assertEquals(0, mArea.top, 0);
+        mArea.home(new Rect(1200, 0, 2000, 400));
+        assertEquals(1000, mArea.left, 0);
+        assertEquals(2000, mArea.right, 0);
+    }
+
+    @Test
+    public void evaluate() throws Exception {
+        DoubleRect end = new DoubleRect(mArea);
+        end.offset(100, -50);
+        DoubleRect half = new DoubleRect();
+        half.evaluate(0.5, mArea, end);
+        assertEquals(150, half.left, 0);
+        assertEquals(25, half.top, 0);
+        assertEquals(mArea.width(), half.width(), 0);
+        assertEquals(mArea.height(), half.height(), 0);
+    }
+}
@@ -0,0 +1,107 @@
+package me.kareluo.intensify.image;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrequencyPolicyTest {
+
+    private static IntensifyCache<Integer, Integer, Void> newCache(int maxSize,
+                                                                   IntensifyCache.EvictionPolicy<Integer> policy) {
+        IntensifyCache<Integer, Integer, Void> cache = new IntensifyCache<>(maxSize);
+        cache.setEvictionPolicy(policy);
+        return cache;
+    }
+
+    /**
+     * Look the key up like a view does, and insert it on a miss.
+     */
+    private static void access(IntensifyCache<Integer, Integer, Void> cache, int key) {
+        if (cache.justGet(key) == null) {
+            cache.put(key, key);
+        }
+    }
+
+    @Test
+    public void sketchSaturatesAtFifteen() throws Exception {
+        FrequencyPolicy.FrequencySketch sketch = new FrequencyPolicy.FrequencySketch(1024);
+        for (int i = 0; i < 40; i++) {
+            sketch.increment(1);
+        }
+        assertEquals(15, sketch.frequency(1));
+        assertEquals(0, sketch.frequency(2));
+    }
+
+    @Test
+    public void sketchHalvesAfterSampleSize() throws Exception {
+        // 16 counters per row, aged every 16 * 10 additions
+        FrequencyPolicy.FrequencySketch sketch = new FrequencyPolicy.FrequencySketch(16);
+        for (int i = 0; i < 15; i++) {
+            sketch.increment(1);
+        }
+        for (int i = 0; i < 144; i++) {
+            sketch.increment(2);
+        }
+        assertEquals(15, sketch.frequency(1));
+
+        sketch.increment(2);
+        assertEquals(7, sketch.frequency(1));
+        assertEquals(7, sketch.frequency(2));
+    }
+
+    @Test
+    public void rejectsCandidateNotSeenMoreThanVictim() throws Exception {
+        IntensifyCache<Integer, Integer, Void> cache = newCache(4, new FrequencyPolicy<Integer>());
+        for (int key = 1; key <= 4; key++) {
+            access(cache, key);
+        }
+        // 4 leaves the window with the same frequency as 1, the least recent of the main area
+        access(cache, 5);
+        assertFalse(cache.contains(4));
+        assertTrue(cache.contains(1));
+        assertTrue(cache.contains(5));
+    }
+
+    @Test
+    public void admitsCandidateSeenMoreThanVictim() throws Exception {
+        IntensifyCache<Integer, Integer, Void> cache = newCache(4, new FrequencyPolicy<Integer>());
+        for (int key = 1; key <= 4; key++) {
+            access(cache, key);
+        }
+        for (int i = 0; i < 4; i++) {
+            cache.justGet(9);
+        }
+        access(cache, 9);
+        // 9 leaves the window after being looked up five times, and replaces 1
+        access(cache, 10);
+        assertTrue(cache.contains(9));
+        assertFalse(cache.contains(1));
+        assertTrue(cache.contains(2));
+        assertTrue(cache.contains(3));
+    }
+
+    @Test
+    public void scanDoesNotFlushFrequentEntries() throws Exception {
+        IntensifyCache<Integer, Integer, Void> frequency = newCache(8, new FrequencyPolicy<Integer>());
+        IntensifyCache<Integer, Integer, Void> lru = newCache(8, null);
+        for (int round = 0; round < 5; round++) {
+            for (int key = 0; key < 6; key++) {
+                access(frequency, key);
+                access(lru, key);
+            }
+        }
+        for (int key = 100; key < 200; key++) {
+            access(frequency, key);
+            access(lru, key);
+        }
+        for (int key = 0; key < 6; key++) {
+            assertTrue("frequent entry " + key + " kept", frequency.contains(key));
+            assertFalse("lru keeps only the scan", lru.contains(key));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowPercentOutOfRange() throws Exception {
+        new FrequencyPolicy<Integer>(1f, 16);
+    }
+}
@@ -0,0 +1,136 @@
+package me.kareluo.intensify.image;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class IntensifyCacheTest {
+
+    private static class SlowCache extends IntensifyCache<Integer, Object, Void> {
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final AtomicInteger mCreates = new AtomicInteger();
+        volatile boolean mReturnNull = false;
+
+        SlowCache() {
+            super(16);
+        }
+
+        @Override
+        protected Object create(Integer key) {
+            mCreates.incrementAndGet();
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                return null;
+            }
+            return mReturnNull ? null : new Object();
+        }
+    }
+
+    private static Thread[] getAll(final SlowCache cache, final Object[] results) {
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = cache.get(1);
+                }
+            };
+            threads[i].start();
+        }
+        return threads;
+    }
+
+    private static void awaitFollowers(SlowCache cache, int followers) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.dedupCount() < followers || cache.mCreates.get() < 1) {
+            assertTrue("followers waiting", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void concurrentMissesShareOneCreate() throws Exception {
+        SlowCache cache = new SlowCache();
+        Object[] results = new Object[4];
+        Thread[] threads = getAll(cache, results);
+        awaitFollowers(cache, results.length - 1);
+        cache.mRelease.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(1, cache.mCreates.get());
+        assertEquals(1, cache.createCount());
+        assertEquals(results.length - 1, cache.dedupCount());
+        assertNotNull(results[0]);
+        for (Object result : results) {
+            assertSame(results[0], result);
+        }
+        assertSame(results[0], cache.get(1));
+        assertEquals(1, cache.mCreates.get());
+    }
+
+    @Test
+    public void failedCreateIsNotCached() throws Exception {
+        SlowCache cache = new SlowCache();
+        cache.mReturnNull = true;
+        Object[] results = new Object[2];
+        Thread[] threads = getAll(cache, results);
+        awaitFollowers(cache, results.length - 1);
+        cache.mRelease.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertNull(results[0]);
+        assertNull(results[1]);
+        assertEquals(0, cache.createCount());
+        assertFalse(cache.contains(1));
+
+        cache.mReturnNull = false;
+        assertNotNull(cache.get(1));
+        assertEquals(2, cache.mCreates.get());
+    }
+
+    @Test
+    public void missAfterCompletedCreateUsesCachedValue() throws Exception {
+        final Object created = new Object();
+        final AtomicInteger creates = new AtomicInteger();
+        IntensifyCache<Integer, Object, Void> cache = new IntensifyCache<Integer, Object, Void>(16) {
+            @Override
+            protected Object alternative(Integer key, Void level) {
+                // another caller finishes creating the key after this one missed
+                put(key, created);
+                return null;
+            }
+
+            @Override
+            protected Object create(Integer key) {
+                creates.incrementAndGet();
+                return new Object();
+            }
+        };
+
+        assertSame(created, cache.get(1));
+        assertEquals(0, creates.get());
+        assertEquals(0, cache.createCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        IntensifyCache<Integer, Integer, Void> cache = new IntensifyCache<>(3);
+        cache.put(1, 1);
+        cache.put(2, 2);
+        cache.put(3, 3);
+        cache.get(1);
+        cache.put(4, 4);
+        assertTrue(cache.contains(1));
+        assertFalse(cache.contains(2));
+        assertEquals(1, cache.evictionCount());
+    }
+}
@@ -0,0 +1,61 @@
+package me.kareluo.intensify.image;
+
+import android.graphics.Rect;
+import android.media.ExifInterface;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OrientationTest {
+
+    private static final int WIDTH = 40, HEIGHT = 30;
+
+    @Test
+    public void toSourceOfCorner() throws Exception {
+        Rect corner = new Rect(0, 0, 10, 5);
+        assertEquals(new Rect(0, 0, 10, 5),
+                Orientation.toSource(corner, ExifInterface.ORIENTATION_NORMAL, WIDTH, HEIGHT));
+        assertEquals(new Rect(30, 0, 40, 5),
+                Orientation.toSource(corner, ExifInterface.ORIENTATION_FLIP_HORIZONTAL, WIDTH, HEIGHT));
+        assertEquals(new Rect(30, 25, 40, 30),
+                Orientation.toSource(corner, ExifInterface.ORIENTATION_ROTATE_180, WIDTH, HEIGHT));
+        assertEquals(new Rect(0, 25, 10, 30),
+                Orientation.toSource(corner, ExifInterface.ORIENTATION_FLIP_VERTICAL, WIDTH, HEIGHT));
+        assertEquals(new Rect(0, 0, 5, 10),
+                Orientation.toSource(corner, ExifInterface.ORIENTATION_TRANSPOSE, WIDTH, HEIGHT));
+        assertEquals(new Rect(0, 20, 5, 30),
+                Orientation.toSource(corner, ExifInterface.ORIENTATION_ROTATE_90, WIDTH, HEIGHT));
+        assertEquals(new Rect(35, 20, 40, 30),
+                Orientation.toSource(corner, ExifInterface.ORIENTATION_TRANSVERSE, WIDTH, HEIGHT));
+        assertEquals(new Rect(35, 0, 40, 10),
+                Orientation.toSource(corner, ExifInterface.ORIENTATION_ROTATE_270, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void toSourceOfWholeImage() throws Exception {
+        Rect source = new Rect(0, 0, WIDTH, HEIGHT);
+        for (int orientation = ExifInterface.ORIENTATION_NORMAL;
+             orientation <= ExifInterface.ORIENTATION_ROTATE_270; orientation++) {
+            Rect display = Orientation.isTransposed(orientation)
+                    ? new Rect(0, 0, HEIGHT, WIDTH) : new Rect(source);
+            assertEquals("orientation " + orientation, source,
+                    Orientation.toSource(display, orientation, WIDTH, HEIGHT));
+        }
+    }
+
+    @Test
+    public void isTransposed() throws Exception {
+        assertFalse(Orientation.isTransposed(ExifInterface.ORIENTATION_UNDEFINED));
+        assertFalse(Orientation.isTransposed(ExifInterface.ORIENTATION_NORMAL));
+        assertFalse(Orientation.isTransposed(ExifInterface.ORIENTATION_FLIP_VERTICAL));
+        assertTrue(Orientation.isTransposed(ExifInterface.ORIENTATION_TRANSPOSE));
+        assertTrue(Orientation.isTransposed(ExifInterface.ORIENTATION_ROTATE_90));
+        assertTrue(Orientation.isTransposed(ExifInterface.ORIENTATION_ROTATE_270));
+    }
+}